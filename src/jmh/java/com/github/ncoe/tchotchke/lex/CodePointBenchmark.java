@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares lexing UTF-16 units with lexing code points, on mostly ASCII text and on text with supplementary characters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodePointBenchmark {
+    @Param({"INTERPRETED", "COMPILED"})
+    public LexMode mode;
+
+    @Param({"false", "true"})
+    public boolean codePoints;
+
+    @Param({"ascii", "mixed"})
+    public String text;
+
+    private Tokenizer<String, String> tokenizer;
+    private String source;
+
+    @Setup
+    public void setup() {
+        tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.SPACE, LexAction.SHIFT, "space")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number")
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("space")
+            .add(Characters.SPACE, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("number")
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(Characters.SPACE.or(Characters.DIGIT), LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .mode(mode)
+            .codePoints(codePoints)
+            .build(true));
+
+        String line = "ascii".equals(text)
+            ? "the quick brown fox jumps over 13 lazy dogs "
+            : "the quick 🦊 jumps over 13 懒惰的 🐕 𠀋 ";
+        source = line.repeat(1 << 14);
+    }
+
+    @Benchmark
+    public long lex() {
+        return tokenizer.lex(source).count();
+    }
+}
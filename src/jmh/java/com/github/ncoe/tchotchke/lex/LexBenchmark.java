@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Tokenizer#lex(String)} on representative sources, with a small grammar and a large one.
+ * Every source is exactly {@link #CHARS} characters long, and an operation is a character,
+ * so the throughput is in characters per second, and with {@code -prof gc},
+ * {@code gc.alloc.rate.norm} is in bytes allocated per character.
+ *
+ * <p>The large grammar is the small one with {@link #FILLER} more transitions ahead of the others in every state,
+ * on characters that do not occur in the sources, to show how the cost per character scales with the number of
+ * transitions per state in each mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LexBenchmark {
+    /**
+     * The length of every source.
+     */
+    static final int CHARS = 1 << 20;
+
+    /**
+     * The number of extra transitions per state of the large grammar.
+     */
+    static final int FILLER = 256;
+
+    @Param({"identifiers", "whitespace", "strings", "crlf", "unicode"})
+    public String corpus;
+
+    @Param({"small", "large"})
+    public String grammar;
+
+    @Param({"INTERPRETED", "COMPILED", "GENERATED"})
+    public LexMode mode;
+
+    private Tokenizer<String, String> tokenizer;
+    private String source;
+
+    @Setup
+    public void setup() {
+        LexStateMachine.Builder<String, String> builder = LexStateMachine.builder("start");
+        if ("large".equals(grammar)) {
+            for (String state : new String[]{"start", "space", "word", "number", "string", "escape"}) {
+                for (int i = 0; i < FILLER; i++) {
+                    //private use characters, which the sources do not have
+                    builder.add(state, Characters.of((char) (0xe000 + i)), LexAction.SHIFT_REDUCE, "start");
+                }
+            }
+        }
+
+        CharacterPredicate space = Characters.SPACE.or(Characters.HT).or(Characters.LF);
+        CharacterPredicate letter = ch -> ch == '_' || Character.isLetter(ch);
+        tokenizer = new Tokenizer<>(builder
+            .begin("start")
+            .add(space, LexAction.SHIFT, "space")
+            .add(letter, LexAction.SHIFT, "word")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number")
+            .add(Characters.DQ, LexAction.SHIFT, "string")
+            .add(Characters.any(), LexAction.SHIFT_REDUCE)
+            .begin("space")
+            .add(space, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(letter.or(Characters.DIGIT), LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("number")
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("string")
+            .add(Characters.DQ, LexAction.SHIFT_REDUCE, "start")
+            .add(Characters.BACKSLASH, LexAction.SHIFT, "escape")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("escape")
+            .add(Characters.any(), LexAction.SHIFT, "string")
+            .mode(mode)
+            .build(true));
+
+        String line = switch (corpus) {
+            case "identifiers" -> "alpha beta_2 gamma delta_epsilon zeta eta theta iota kappa lambda mu ";
+            case "whitespace" -> "x" + " ".repeat(40) + "\t\t" + " ".repeat(7) + "y\n\n    ";
+            case "strings" -> "\"" + "lorem ipsum dolor sit amet, \\\"consectetur\\\" adipiscing elit ".repeat(8) + "\" ";
+            case "crlf" -> "key = 12\r\nname = value\r\n\r\n";
+            case "unicode" -> "Привет мир 你好世界 Ωμέγα café naïve Größe 12 ";
+            default -> throw new IllegalArgumentException(corpus);
+        };
+        source = line.repeat(CHARS / line.length() + 1).substring(0, CHARS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHARS)
+    public long lex() {
+        return tokenizer.lex(source).count();
+    }
+}
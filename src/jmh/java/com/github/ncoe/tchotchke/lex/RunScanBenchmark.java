@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares scanning runs with vectors against the scalar scan, on JSON log lines.
+ * The short lines have a typical message, while the long lines carry a stack trace as a single string,
+ * so the time is spent scanning rather than building tokens.
+ * Every parameter combination runs in its own fork, so the system property is read fresh.
+ * The vectors take the preferred species, so on an AVX-512 machine, appending {@code -XX:UseAVX=2}
+ * to the JVM arguments measures the 16 lane vectors of an AVX2 machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 3, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class RunScanBenchmark {
+    @Param({"false", "true"})
+    public boolean vector;
+
+    @Param({"INTERPRETED", "COMPILED"})
+    public LexMode mode;
+
+    @Param({"short", "long"})
+    public String lines;
+
+    private Tokenizer<String, String> tokenizer;
+    private String source;
+
+    @Setup
+    public void setup() {
+        System.setProperty(VectorSupport.PROPERTY, Boolean.toString(vector));
+        tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.of('"'), LexAction.SKIP, "string")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT, "space")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number")
+            .add(Characters.any(), LexAction.SHIFT_REDUCE)
+            .begin("string")
+            .add(Characters.of('"'), LexAction.SKIP_REDUCE, "start")
+            .add(Characters.BACKSLASH, LexAction.SHIFT, "escape")
+            .add(Characters.CONTROL, LexAction.SHIFT_REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("escape")
+            .add(Characters.any(), LexAction.SHIFT, "string")
+            .begin("space")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("number")
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .mode(mode)
+            .build(true));
+
+        String line = """
+            {"time": 1735689600123, "level": "INFO", "logger": "com.example.service.OrderService", \
+            "message": "Accepted order 8c1f2e7a-51a4-4d7e-9a55-0f4b3e2f9d11 for customer 5521 after payment \
+            authorization succeeded on the second attempt", "thread": "http-nio-8080-exec-17"}
+            """;
+        if ("long".equals(lines)) {
+            String trace = "\\n\\tat com.example.service.OrderService.authorize(OrderService.java:212)".repeat(64);
+            line = line.replace("attempt\"", "attempt" + trace + "\"");
+        }
+        source = line.repeat((1 << 20) / line.length());
+    }
+
+    @Benchmark
+    public long lex() {
+        return tokenizer.lex(source).count();
+    }
+}
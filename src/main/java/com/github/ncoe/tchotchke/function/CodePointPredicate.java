@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.function;
+
+import com.github.ncoe.tchotchke.util.Assertion;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Represents a predicate (boolean-valued function) of one code point.
+ * A character is tested as the code point of the same value, so this is also a {@link CharacterPredicate}.
+ */
+@FunctionalInterface
+public interface CodePointPredicate extends CharacterPredicate {
+    /**
+     * Evaluates this predicate on the given argument.
+     *
+     * @param codePoint the code point
+     * @return {@code true} if the input argument matches the predicate, otherwise {@code false}
+     */
+    boolean test(int codePoint);
+
+    @Override
+    default boolean test(char ch) {
+        return test((int) ch);
+    }
+
+    /**
+     * Adapt an {@link IntPredicate} over code points.
+     *
+     * @param predicate the predicate
+     * @return the code point predicate
+     */
+    static CodePointPredicate of(IntPredicate predicate) {
+        Assertion.notNull(predicate, "the predicate may not be null");
+        return predicate::test;
+    }
+
+    /**
+     * Adapt a character predicate, which never matches a supplementary code point.
+     *
+     * @param predicate the predicate
+     * @return the code point predicate, or the same predicate if it already tests code points
+     */
+    static CodePointPredicate from(CharacterPredicate predicate) {
+        Assertion.notNull(predicate, "the predicate may not be null");
+        if (predicate instanceof CodePointPredicate codePointPredicate) {
+            return codePointPredicate;
+        }
+        return new CodePointPredicate() {
+            @Override
+            public boolean test(int codePoint) {
+                return codePoint <= Character.MAX_VALUE && predicate.test((char) codePoint);
+            }
+
+            @Override
+            public boolean test(char ch) {
+                return predicate.test(ch);
+            }
+        };
+    }
+
+    @Override
+    default CodePointPredicate and(CharacterPredicate other) {
+        CodePointPredicate that = from(other);
+        return value -> test(value) && that.test(value);
+    }
+
+    @Override
+    default CodePointPredicate negate() {
+        return value -> !test(value);
+    }
+
+    @Override
+    default CodePointPredicate or(CharacterPredicate other) {
+        CodePointPredicate that = from(other);
+        return value -> test(value) || that.test(value);
+    }
+}
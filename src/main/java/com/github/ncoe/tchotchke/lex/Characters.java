@@ -5,6 +5,7 @@
 package com.github.ncoe.tchotchke.lex;
 
 import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import com.github.ncoe.tchotchke.function.CodePointPredicate;
 
 /**
  * Constants for  working with characters
@@ -62,7 +63,7 @@ public final class Characters {
      * @param value the value to match
      * @return the predicate
      */
-    public static CharacterPredicate of(char value) {
+    public static CodePointPredicate of(char value) {
         return of((int) value);
     }
 
@@ -72,7 +73,7 @@ public final class Characters {
      * @param value the value to match
      * @return the predicate
      */
-    public static CharacterPredicate of(int value) {
+    public static CodePointPredicate of(int value) {
         return ch -> ch == value;
     }
 
@@ -83,7 +84,7 @@ public final class Characters {
      * @param end the ending code point
      * @return the predicate
      */
-    public static CharacterPredicate inclusive(char beg, char end) {
+    public static CodePointPredicate inclusive(char beg, char end) {
         return inclusive(beg, (int) end);
     }
 
@@ -94,16 +95,26 @@ public final class Characters {
      * @param end the ending code point
      * @return the predicate
      */
-    public static CharacterPredicate inclusive(int beg, int end) {
+    public static CodePointPredicate inclusive(int beg, int end) {
         return ch -> beg <= ch && ch <= end;
     }
 
+    /**
+     * Create a predicate to match the code points of a Unicode script.
+     *
+     * @param script the script
+     * @return the predicate
+     */
+    public static CodePointPredicate script(Character.UnicodeScript script) {
+        return ch -> Character.UnicodeScript.of(ch) == script;
+    }
+
     /**
      * Create a predicate that matches all characters
      *
      * @return the predicate
      */
-    public static CharacterPredicate any() {
+    public static CodePointPredicate any() {
         return _ -> true;
     }
 }
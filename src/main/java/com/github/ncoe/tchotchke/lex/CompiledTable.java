@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import com.github.ncoe.tchotchke.function.CodePointPredicate;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Lex table with every predicate evaluated up front, so a transition is a pair of array reads.
+ *
+ * <p>Characters that every predicate treats the same way share an equivalence class,
+ * and the table only holds one column per class.
+ * The class of a character is found through a two level map, where blocks of 256 characters are shared when equal.
+ * When lexing code points, the map covers the supplementary planes too, so both kinds share the same lookup.
+ */
+final class CompiledTable implements LexTable {
+    private static final int BLOCK = 256;
+
+    private final int width;
+    private final char[] index;
+    private final char[] classes;
+    private final int classCount;
+    private final int[] cells;
+
+    private CompiledTable(int width, char[] index, char[] classes, int classCount, int[] cells) {
+        this.width = width;
+        this.index = index;
+        this.classes = classes;
+        this.classCount = classCount;
+        this.cells = cells;
+    }
+
+    /**
+     * Partition the characters into equivalence classes, and evaluate the predicates of every state for each class.
+     * Deferrals are resolved to the transition they lead to, for each class.
+     *
+     * @param predicates the predicates of each state, which must all be code point predicates for code points
+     * @param cells      the cell matching each predicate
+     * @param codePoints true to cover every code point, rather than only the characters
+     * @return the table
+     * @throws LexException          if the deferrals of a class lead back to a state
+     * @throws IllegalStateException if the predicates split the characters into more classes than a char can number
+     */
+    static CompiledTable compile(CharacterPredicate[][] predicates, int[][] cells, boolean codePoints) {
+        int width = codePoints ? Character.MAX_CODE_POINT + 1 : Character.MAX_VALUE + 1;
+        char[] classOf = new char[width];
+        int classCount = 1;
+
+        Map<CharacterPredicate, Boolean> seen = new IdentityHashMap<>();
+        int[] remap = new int[2 * width];
+        for (CharacterPredicate[] row : predicates) {
+            for (CharacterPredicate predicate : row) {
+                if (seen.put(predicate, Boolean.TRUE) != null) {
+                    continue;
+                }
+
+                //split every class by the result of the predicate
+                Arrays.fill(remap, 0, 2 * classCount, -1);
+                int count = 0;
+                for (int ch = 0; ch < width; ch++) {
+                    int key = 2 * classOf[ch] + (test(predicate, ch) ? 1 : 0);
+                    if (remap[key] < 0) {
+                        remap[key] = count++;
+                    }
+                    classOf[ch] = (char) remap[key];
+                }
+                //the classes are stored as chars, which would wrap past the last one
+                if (count > Character.MAX_VALUE + 1) {
+                    throw new IllegalStateException(
+                        "Too many equivalence classes %d, at most %d are supported".formatted(
+                            count,
+                            Character.MAX_VALUE + 1
+                        )
+                    );
+                }
+                classCount = count;
+            }
+        }
+
+        int[] sample = new int[classCount];
+        boolean[] found = new boolean[classCount];
+        for (int ch = 0; ch < width; ch++) {
+            if (!found[classOf[ch]]) {
+                found[classOf[ch]] = true;
+                sample[classOf[ch]] = ch;
+            }
+        }
+
+        int[] table = new int[predicates.length * classCount];
+        for (int state = 0; state < predicates.length; state++) {
+            CharacterPredicate[] row = predicates[state];
+            for (int cls = 0; cls < classCount; cls++) {
+                int cell = NONE;
+                for (int i = 0; i < row.length; i++) {
+                    if (test(row[i], sample[cls])) {
+                        cell = cells[state][i];
+                        break;
+                    }
+                }
+                table[state * classCount + cls] = cell;
+            }
+        }
+
+        //follow the deferrals of each class, which cannot take more steps than there are states unless they loop
+        for (int i = 0; i < table.length; i++) {
+            int cls = i % classCount;
+            for (int steps = 0; LexTable.defers(table[i]); steps++) {
+                if (steps >= predicates.length) {
+                    throw new LexException(
+                        "Deferrals of U+%04X from state %d lead back to it",
+                        sample[cls],
+                        i / classCount
+                    );
+                }
+                table[i] = table[LexTable.next(table[i]) * classCount + cls];
+            }
+        }
+
+        //share identical blocks of the class map
+        char[] index = new char[width / BLOCK];
+        char[] blocks = new char[width];
+        int blockCount = 0;
+        for (int hi = 0; hi < index.length; hi++) {
+            int from = hi * BLOCK;
+            int match = -1;
+            for (int b = 0; b < blockCount && match < 0; b++) {
+                if (Arrays.equals(classOf, from, from + BLOCK, blocks, b * BLOCK, (b + 1) * BLOCK)) {
+                    match = b;
+                }
+            }
+            if (match < 0) {
+                System.arraycopy(classOf, from, blocks, blockCount * BLOCK, BLOCK);
+                match = blockCount++;
+            }
+            index[hi] = (char) match;
+        }
+
+        char[] classes = Arrays.copyOf(blocks, blockCount * BLOCK);
+        return new CompiledTable(width, index, classes, classCount, table);
+    }
+
+    /**
+     * Write the table, in the format read by {@link #read(ByteBuffer)}.
+     *
+     * @param out the output
+     * @throws IOException if the table cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(classCount);
+        out.writeInt(classes.length);
+        out.writeInt(cells.length);
+        for (char ch : index) {
+            out.writeChar(ch);
+        }
+        for (char ch : classes) {
+            out.writeChar(ch);
+        }
+        for (int cell : cells) {
+            out.writeInt(cell);
+        }
+    }
+
+    /**
+     * Read a table, with bulk copies out of the buffer, and check that it is consistent.
+     *
+     * @param buffer     the buffer, positioned at the table
+     * @param stateCount the number of states
+     * @return the table
+     * @throws BufferUnderflowException if the buffer is too short
+     * @throws LexException             if the table is inconsistent
+     */
+    static CompiledTable read(ByteBuffer buffer, int stateCount) {
+        int width = buffer.getInt();
+        int classCount = buffer.getInt();
+        int classLength = buffer.getInt();
+        int cellLength = buffer.getInt();
+        if (width != Character.MAX_VALUE + 1 && width != Character.MAX_CODE_POINT + 1) {
+            throw new LexException("Bad table width %d", width);
+        }
+        if (classCount < 1 || classCount > Character.MAX_VALUE + 1
+            || classLength < BLOCK || classLength > width || classLength % BLOCK != 0
+            || cellLength != (long) stateCount * classCount) {
+            throw new LexException(
+                "Bad table sizes: %d classes, %d class map entries and %d cells for %d states",
+                classCount,
+                classLength,
+                cellLength,
+                stateCount
+            );
+        }
+        if (buffer.remaining() < 2L * (width / BLOCK + classLength) + 4L * cellLength) {
+            throw new BufferUnderflowException();
+        }
+
+        char[] index = new char[width / BLOCK];
+        char[] classes = new char[classLength];
+        int[] cells = new int[cellLength];
+        buffer.asCharBuffer().get(index).get(classes);
+        buffer.position(buffer.position() + 2 * (index.length + classes.length));
+        buffer.asIntBuffer().get(cells);
+        buffer.position(buffer.position() + 4 * cells.length);
+
+        for (char block : index) {
+            if (block >= classLength / BLOCK) {
+                throw new LexException("Bad class map block %d", (int) block);
+            }
+        }
+        for (char cls : classes) {
+            if (cls >= classCount) {
+                throw new LexException("Bad class %d", (int) cls);
+            }
+        }
+        int actions = LexAction.values().length;
+        for (int cell : cells) {
+            if (cell != NONE && ((cell & 7) >= actions || LexTable.defers(cell)
+                || LexTable.next(cell) >= stateCount || LexTable.token(cell) >= stateCount)) {
+                throw new LexException("Bad transition %08x", cell);
+            }
+        }
+        return new CompiledTable(width, index, classes, classCount, cells);
+    }
+
+    private static boolean test(CharacterPredicate predicate, int ch) {
+        if (ch > Character.MAX_VALUE) {
+            return ((CodePointPredicate) predicate).test(ch);
+        }
+        return predicate.test((char) ch);
+    }
+
+    /**
+     * Get the number of characters, or code points, covered by the table.
+     *
+     * @return the width
+     */
+    int width() {
+        return width;
+    }
+
+    /**
+     * Get the number of equivalence classes.
+     *
+     * @return the count
+     */
+    int classCount() {
+        return classCount;
+    }
+
+    /**
+     * Get the equivalence class of a character.
+     *
+     * @param ch the character
+     * @return the class
+     */
+    int classOf(int ch) {
+        return classes[index[ch >>> 8] << 8 | ch & 0xff];
+    }
+
+    /**
+     * Get the transition of a state for a class.
+     *
+     * @param state the state id
+     * @param cls   the class
+     * @return the cell
+     */
+    int cell(int state, int cls) {
+        return cells[state * classCount + cls];
+    }
+
+    /**
+     * Make a table with some of the states, sharing the classes of this one.
+     *
+     * @param kept the old id of each state kept
+     * @param ids  the new id of each old state
+     * @return the table
+     */
+    CompiledTable merge(int[] kept, int[] ids) {
+        int[] merged = new int[kept.length * classCount];
+        for (int state = 0; state < kept.length; state++) {
+            for (int cls = 0; cls < classCount; cls++) {
+                merged[state * classCount + cls] = LexTable.renumber(cell(kept[state], cls), ids);
+            }
+        }
+        return new CompiledTable(width, index, classes, classCount, merged);
+    }
+
+    @Override
+    public int transition(int state, int ch) {
+        return cells[state * classCount + classOf(ch)];
+    }
+}
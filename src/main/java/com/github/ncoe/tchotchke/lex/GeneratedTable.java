@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.Label;
+import java.lang.classfile.instruction.SwitchCase;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates a hidden class specialized to the transitions of a compiled table.
+ *
+ * <p>Every state becomes a static method that narrows the character down to its range with a tree of comparisons,
+ * and returns the cell of the range as a constant.
+ * A state with more ranges than fit a method under the {@code HugeMethodLimit} of HotSpot
+ * splits its search over a tree of methods, each comparing the character once and calling the half holding it.
+ * The {@code transition} method selects the state method through a tree of {@code tableswitch} methods
+ * with at most {@link #FANOUT} cases each, so that every one of them stays small enough to be inlined.
+ * Only the lookup is generated; the machine dispatches the cell it returns as it does for the other tables.
+ *
+ * <p>When the class would not fit its constant pool, or cannot be defined,
+ * the compiled table is kept instead, and the machine reports {@link LexMode#COMPILED} from
+ * {@link LexStateMachine#mode()}.
+ */
+final class GeneratedTable {
+    /**
+     * The most bytecode of a state method, under the {@code HugeMethodLimit} of HotSpot.
+     */
+    static final int MAX_METHOD_BYTES = 8000;
+
+    /**
+     * The most cases of a dispatch method, which keeps it under the {@code FreqInlineSize} of HotSpot.
+     */
+    static final int FANOUT = 16;
+
+    /**
+     * The most bytecode per range of a state method: a comparison and a returned constant.
+     */
+    private static final int RANGE_BYTES = 11;
+
+    /**
+     * The most ranges searched by a single state method.
+     */
+    private static final int MAX_RANGES = MAX_METHOD_BYTES / RANGE_BYTES;
+
+    /**
+     * The most constant pool entries for the cells, boundaries and methods, leaving room for the others.
+     */
+    private static final int MAX_CONSTANTS = 60000;
+
+    private static final ClassDesc CD_TABLE = ClassDesc.of(LexTable.class.getName());
+    private static final MethodTypeDesc MTD_STATE = MethodTypeDesc.of(ConstantDescs.CD_int, ConstantDescs.CD_int);
+    private static final MethodTypeDesc MTD_TRANSITION = MethodTypeDesc.of(
+        ConstantDescs.CD_int,
+        ConstantDescs.CD_int,
+        ConstantDescs.CD_int
+    );
+
+    private record Range(int beg, int cell) {
+        //empty
+    }
+
+    private GeneratedTable() {
+        //empty
+    }
+
+    /**
+     * Generate a table equivalent to a compiled table.
+     *
+     * @param compiled   the compiled table
+     * @param stateCount the number of states
+     * @return the generated table, or the compiled table when the class would not fit its constant pool,
+     * or cannot be loaded
+     */
+    static LexTable generate(CompiledTable compiled, int stateCount) {
+        List<List<Range>> rangeList = new ArrayList<>();
+        Set<Integer> constants = new HashSet<>();
+        //every method takes a reference, a name and type, and a name
+        long methods = stateCount + stateCount / (FANOUT - 1) + 1L;
+        for (int state = 0; state < stateCount; state++) {
+            List<Range> ranges = ranges(compiled, state);
+            //a split search takes up to two more methods for every extra method worth of ranges
+            methods += 2L * Math.max(0, ranges.size() / MAX_RANGES * 2 - 1);
+            for (Range range : ranges) {
+                constants.add(range.beg);
+                constants.add(range.cell);
+            }
+            rangeList.add(ranges);
+        }
+        if (constants.size() + 3 * methods > MAX_CONSTANTS) {
+            return compiled;
+        }
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(build(rangeList), true);
+            return (LexTable) lookup.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (IllegalArgumentException | LinkageError | ReflectiveOperationException e) {
+            //the class could not be built or verified, but the compiled table does the same
+            return compiled;
+        }
+    }
+
+    /**
+     * Build the hidden class.
+     *
+     * @param rangeList the ranges of every state
+     * @return the class file
+     */
+    private static byte[] build(List<List<Range>> rangeList) {
+        int stateCount = rangeList.size();
+        ClassDesc self = ClassDesc.of(GeneratedTable.class.getPackageName(), "GeneratedTable$Impl");
+        return ClassFile.of().build(self, clb -> {
+            clb.withFlags(ClassFile.ACC_FINAL | ClassFile.ACC_SYNTHETIC);
+            clb.withSuperclass(ConstantDescs.CD_Object);
+            clb.withInterfaceSymbols(CD_TABLE);
+            clb.withMethodBody(ConstantDescs.INIT_NAME, ConstantDescs.MTD_void, ClassFile.ACC_PUBLIC, cob -> cob
+                .aload(0)
+                .invokespecial(ConstantDescs.CD_Object, ConstantDescs.INIT_NAME, ConstantDescs.MTD_void)
+                .return_());
+
+            for (int state = 0; state < stateCount; state++) {
+                stateMethod(clb, self, "state" + state, rangeList.get(state), 0, rangeList.get(state).size());
+            }
+
+            //the number of states of each case of the transition method, a power of the fanout
+            int span = 1;
+            while ((long) span * FANOUT < stateCount) {
+                span *= FANOUT;
+            }
+            int root = span;
+            clb.withMethodBody(
+                "transition",
+                MTD_TRANSITION,
+                ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL,
+                cob -> dispatch(cob, self, 0, stateCount, root, 1)
+            );
+
+            //each dispatch method covers an aligned block of states, and has a case per smaller block
+            for (int size = root; size > 1; size /= FANOUT) {
+                int block = size;
+                for (int lo = 0; lo < stateCount; lo += block) {
+                    int first = lo;
+                    clb.withMethodBody(
+                        dispatchName(first, block),
+                        MTD_TRANSITION,
+                        ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC,
+                        cob -> dispatch(cob, self, first, Math.min(first + block, stateCount), block / FANOUT, 0)
+                    );
+                }
+            }
+        });
+    }
+
+    /**
+     * Add a method searching some of the ranges of a state, along with the methods it calls
+     * when they are too many for one method.
+     *
+     * @param clb    the class builder
+     * @param self   the generated class
+     * @param name   the name of the method
+     * @param ranges the ranges
+     * @param lo     the first range (inclusive)
+     * @param hi     the last range (exclusive)
+     */
+    private static void stateMethod(ClassBuilder clb, ClassDesc self, String name, List<Range> ranges, int lo, int hi) {
+        int flags = ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC;
+        if (hi - lo <= MAX_RANGES) {
+            clb.withMethodBody(name, MTD_STATE, flags, cob -> search(cob, ranges, lo, hi));
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        String lower = name + "_" + lo + "_" + mid;
+        String upper = name + "_" + mid + "_" + hi;
+        clb.withMethodBody(name, MTD_STATE, flags, cob -> {
+            Label above = cob.newLabel();
+            cob.iload(0);
+            cob.loadConstant(ranges.get(mid).beg);
+            cob.if_icmpge(above);
+            cob.iload(0);
+            cob.invokestatic(self, lower, MTD_STATE);
+            cob.ireturn();
+            cob.labelBinding(above);
+            cob.iload(0);
+            cob.invokestatic(self, upper, MTD_STATE);
+            cob.ireturn();
+        });
+        stateMethod(clb, self, lower, ranges, lo, mid);
+        stateMethod(clb, self, upper, ranges, mid, hi);
+    }
+
+    private static String dispatchName(int lo, int size) {
+        return "dispatch" + lo + "_" + size;
+    }
+
+    /**
+     * Emit a {@code tableswitch} over a block of states, calling the state methods,
+     * or the dispatch methods of the smaller blocks.
+     *
+     * @param cob  the code builder
+     * @param self the generated class
+     * @param lo   the first state (inclusive)
+     * @param hi   the last state (exclusive)
+     * @param span the number of states of each case
+     * @param slot the local of the state, followed by the character
+     */
+    private static void dispatch(CodeBuilder cob, ClassDesc self, int lo, int hi, int span, int slot) {
+        int shift = Integer.numberOfTrailingZeros(span);
+        int low = lo >>> shift;
+        int high = (hi - 1) >>> shift;
+
+        Label unknown = cob.newLabel();
+        List<Label> labels = new ArrayList<>();
+        List<SwitchCase> cases = new ArrayList<>();
+        for (int key = low; key <= high; key++) {
+            Label label = cob.newLabel();
+            labels.add(label);
+            cases.add(SwitchCase.of(key, label));
+        }
+
+        cob.iload(slot);
+        if (shift > 0) {
+            cob.loadConstant(shift);
+            cob.iushr();
+        }
+        cob.tableswitch(low, high, unknown, cases);
+        for (int key = low; key <= high; key++) {
+            cob.labelBinding(labels.get(key - low));
+            if (span == 1) {
+                cob.iload(slot + 1);
+                cob.invokestatic(self, "state" + key, MTD_STATE);
+            } else {
+                cob.iload(slot);
+                cob.iload(slot + 1);
+                cob.invokestatic(self, dispatchName(key << shift, span), MTD_TRANSITION);
+            }
+            cob.ireturn();
+        }
+        cob.labelBinding(unknown);
+        cob.loadConstant(LexTable.NONE);
+        cob.ireturn();
+    }
+
+    /**
+     * Split the characters (or code points) into maximal ranges with the same cell.
+     *
+     * @param compiled the compiled table
+     * @param state    the state
+     * @return the ranges, in order
+     */
+    private static List<Range> ranges(CompiledTable compiled, int state) {
+        List<Range> ranges = new ArrayList<>();
+        int prev = 0;
+        for (int ch = 0; ch < compiled.width(); ch++) {
+            int cell = compiled.transition(state, ch);
+            if (ch == 0 || cell != prev) {
+                ranges.add(new Range(ch, cell));
+                prev = cell;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Emit a binary search over the ranges, returning the cell of the range containing the character.
+     *
+     * @param cob    the code builder
+     * @param ranges the ranges
+     * @param lo     the first range (inclusive)
+     * @param hi     the last range (exclusive)
+     */
+    private static void search(CodeBuilder cob, List<Range> ranges, int lo, int hi) {
+        if (hi - lo == 1) {
+            cob.loadConstant(ranges.get(lo).cell);
+            cob.ireturn();
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        Label upper = cob.newLabel();
+        cob.iload(0);
+        cob.loadConstant(ranges.get(mid).beg);
+        cob.if_icmpge(upper);
+        search(cob, ranges, lo, mid);
+        cob.labelBinding(upper);
+        search(cob, ranges, mid, hi);
+    }
+}
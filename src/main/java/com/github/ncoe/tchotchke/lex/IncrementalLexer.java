@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.util.Assertion;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the tokens of a text up to date as it is edited.
+ *
+ * <p>While lexing, the points between tokens are kept as checkpoints every so often: the offset, the state,
+ * the line and column, and the number of tokens before them.
+ * After an edit, the text is lexed again from the last checkpoint before it, until the machine reaches
+ * a checkpoint after the edit in the same state. From there on it would produce the same tokens as before,
+ * so only the tokens in between are replaced.
+ *
+ * <p>The tokens and the checkpoints are kept in gap buffers, with the gap at the last edit, and the checkpoints after
+ * the gap are moved lazily. An edit costs the text lexed again, plus the tokens and checkpoints between it and
+ * the previous edit, rather than the size of the text.
+ *
+ * <p>The checkpoints after an edit are moved by it, so the tokens lexed again carry up to date offsets,
+ * lines and columns, wherever they are. The tokens past the point where lexing caught up are kept as they are,
+ * so any offsets or lines they carry are those of the text they were lexed from.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+public final class IncrementalLexer<S, T> {
+    /**
+     * The fewest characters between two checkpoints.
+     */
+    private static final int INTERVAL = 1 << 8;
+
+    private final LexStateMachine<S, T> stateMachine;
+    private final GapList<T> tokens = new GapList<>();
+    private final Checkpoints checkpoints = new Checkpoints();
+    private int length;
+
+    /**
+     * The tokens replaced by an edit.
+     *
+     * @param from     the index of the first token replaced
+     * @param removed  the number of tokens removed
+     * @param inserted the tokens inserted in their place
+     * @param <T>      the type of token
+     */
+    public record Change<T>(int from, int removed, List<T> inserted) {
+        //empty
+    }
+
+    /**
+     * The tokens, in a gap buffer, so that replacing those around an edit only moves the tokens between
+     * the edit and the previous one.
+     *
+     * @param <E> the type of token
+     */
+    private static final class GapList<E> extends AbstractList<E> implements RandomAccess {
+        private Object[] elements = new Object[16];
+        private int gap;
+        private int gapEnd = elements.length;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            Objects.checkIndex(index, size());
+            return (E) elements[index < gap ? index : index + gapEnd - gap];
+        }
+
+        @Override
+        public int size() {
+            return elements.length - gapEnd + gap;
+        }
+
+        @Override
+        public boolean add(E element) {
+            moveGap(size());
+            reserve(1);
+            elements[gap++] = element;
+            modCount++;
+            return true;
+        }
+
+        /**
+         * Replace a range of elements.
+         *
+         * @param from the first element replaced (inclusive)
+         * @param to   the last element replaced (exclusive)
+         * @param with the elements to put in their place
+         */
+        private void replace(int from, int to, List<? extends E> with) {
+            moveGap(from);
+            Arrays.fill(elements, gapEnd, gapEnd + to - from, null);
+            gapEnd += to - from;
+            reserve(with.size());
+            for (E element : with) {
+                elements[gap++] = element;
+            }
+            modCount++;
+        }
+
+        private void moveGap(int to) {
+            if (to < gap) {
+                int count = gap - to;
+                System.arraycopy(elements, to, elements, gapEnd - count, count);
+                Arrays.fill(elements, to, Math.min(gap, gapEnd - count), null);
+                gapEnd -= count;
+            } else if (to > gap) {
+                int count = to - gap;
+                System.arraycopy(elements, gapEnd, elements, gap, count);
+                Arrays.fill(elements, Math.max(gapEnd, to), gapEnd + count, null);
+                gapEnd += count;
+            }
+            gap = to;
+        }
+
+        private void reserve(int count) {
+            if (gapEnd - gap < count) {
+                int tail = elements.length - gapEnd;
+                Object[] grown = new Object[Math.max(2 * elements.length, gap + count + tail)];
+                System.arraycopy(elements, 0, grown, 0, gap);
+                System.arraycopy(elements, gapEnd, grown, grown.length - tail, tail);
+                elements = grown;
+                gapEnd = grown.length - tail;
+            }
+        }
+    }
+
+    /**
+     * The checkpoints, in order of offset, in a gap buffer.
+     *
+     * <p>The checkpoints after the gap are stored relative to the shifts, so that moving all of them by an edit
+     * only updates the shifts. Only the checkpoints on the line where lexing caught up move by columns,
+     * and those are updated one by one.
+     */
+    private static final class Checkpoints implements LexStateMachine.Boundary {
+        private long[] offsets = new long[16];
+        private int[] states = new int[16];
+        private long[] positions = new long[16];
+        private int[] counts = new int[16];
+        private int size;
+        private int gap;
+        private int gapEnd = offsets.length;
+
+        private long offsetShift;
+        private long positionShift;
+        private int countShift;
+
+        private List<?> tokens;
+        private int base;
+
+        @Override
+        public void mark(long offset, int state, long position) {
+            if (size == 0 || offset - offset(size - 1) >= INTERVAL) {
+                add(offset, state, position, base + tokens.size());
+            }
+        }
+
+        private int slot(int index) {
+            return index < gap ? index : index + gapEnd - gap;
+        }
+
+        private long offset(int index) {
+            return index < gap ? offsets[index] : offsets[slot(index)] + offsetShift;
+        }
+
+        private int state(int index) {
+            return states[slot(index)];
+        }
+
+        private long position(int index) {
+            return index < gap ? positions[index] : positions[slot(index)] + positionShift;
+        }
+
+        private int count(int index) {
+            return index < gap ? counts[index] : counts[slot(index)] + countShift;
+        }
+
+        private void add(long offset, int state, long position, int count) {
+            moveGap(size);
+            insert(offset, state, position, count);
+        }
+
+        /**
+         * Insert a checkpoint at the gap.
+         */
+        private void insert(long offset, int state, long position, int count) {
+            if (gap == gapEnd) {
+                int capacity = 2 * offsets.length;
+                int tail = offsets.length - gapEnd;
+                offsets = grow(offsets, capacity, tail);
+                states = grow(states, capacity, tail);
+                positions = grow(positions, capacity, tail);
+                counts = grow(counts, capacity, tail);
+                gapEnd = capacity - tail;
+            }
+            offsets[gap] = offset;
+            states[gap] = state;
+            positions[gap] = position;
+            counts[gap] = count;
+            gap++;
+            size++;
+        }
+
+        private long[] grow(long[] array, int capacity, int tail) {
+            long[] grown = Arrays.copyOf(array, capacity);
+            System.arraycopy(array, gapEnd, grown, capacity - tail, tail);
+            return grown;
+        }
+
+        private int[] grow(int[] array, int capacity, int tail) {
+            int[] grown = Arrays.copyOf(array, capacity);
+            System.arraycopy(array, gapEnd, grown, capacity - tail, tail);
+            return grown;
+        }
+
+        private void moveGap(int to) {
+            while (gap > to) {
+                gap--;
+                gapEnd--;
+                offsets[gapEnd] = offsets[gap] - offsetShift;
+                states[gapEnd] = states[gap];
+                positions[gapEnd] = positions[gap] - positionShift;
+                counts[gapEnd] = counts[gap] - countShift;
+            }
+            while (gap < to) {
+                offsets[gap] = offsets[gapEnd] + offsetShift;
+                states[gap] = states[gapEnd];
+                positions[gap] = positions[gapEnd] + positionShift;
+                counts[gap] = counts[gapEnd] + countShift;
+                gap++;
+                gapEnd++;
+            }
+        }
+
+        /**
+         * Remove a range of checkpoints, leaving the gap in their place.
+         *
+         * @param from the first checkpoint removed (inclusive)
+         * @param to   the last checkpoint removed (exclusive)
+         */
+        private void remove(int from, int to) {
+            moveGap(from);
+            gapEnd += to - from;
+            size -= to - from;
+        }
+
+        /**
+         * Move the checkpoints after the gap.
+         *
+         * @param delta   the number of characters
+         * @param lines   the number of lines
+         * @param columns the number of columns, for the checkpoints on the line of the first one
+         * @param added   the number of tokens
+         */
+        private void shift(long delta, int lines, int columns, int added) {
+            int line = TokenSpan.line(position(gap));
+            for (int index = gap; index < size && TokenSpan.line(position(index)) == line; index++) {
+                positions[slot(index)] += columns;
+            }
+            offsetShift += delta;
+            positionShift += (long) lines << 32;
+            countShift += added;
+        }
+
+        /**
+         * Find the last checkpoint before an offset.
+         *
+         * @param offset the offset
+         * @return the index of the checkpoint
+         */
+        private int before(long offset) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (offset(mid) < offset) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return Math.max(lo - 1, 0);
+        }
+    }
+
+    /**
+     * Lexes the text again after an edit, until it reaches an old checkpoint in the same state.
+     */
+    private final class Relex implements LexStateMachine.Boundary {
+        private final Checkpoints fresh = new Checkpoints();
+        private final List<T> inserted = new ArrayList<>();
+        private final long end;
+        private final long delta;
+
+        private int index;
+        private int sync = -1;
+        private long position;
+
+        private Relex(int start, long end, long delta) {
+            this.index = start;
+            this.end = end;
+            this.delta = delta;
+            fresh.tokens = inserted;
+            fresh.base = checkpoints.count(start);
+        }
+
+        private boolean accept(T token) {
+            if (sync >= 0) {
+                return false;
+            }
+            inserted.add(token);
+            return true;
+        }
+
+        @Override
+        public void mark(long offset, int state, long position) {
+            if (sync >= 0) {
+                return;
+            }
+            if (offset > end) {
+                long old = offset - delta;
+                while (index < checkpoints.size && checkpoints.offset(index) < old) {
+                    index++;
+                }
+                if (index < checkpoints.size && checkpoints.offset(index) == old && checkpoints.state(index) == state) {
+                    sync = index;
+                    this.position = position;
+                    return;
+                }
+            }
+            fresh.mark(offset, state, position);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param stateMachine the state machine (to be duplicated)
+     * @param text         the text
+     */
+    IncrementalLexer(LexStateMachine<S, T> stateMachine, CharSequence text) {
+        this.stateMachine = stateMachine;
+        this.length = text.length();
+
+        LexStateMachine<S, T> machine = stateMachine.duplicate();
+        checkpoints.tokens = tokens;
+        checkpoints.add(0, machine.state(), TokenSpan.position(1, 1), 0);
+        machine.boundary = checkpoints;
+        machine.process(tokens::add, text, 0, length);
+        machine.boundary = null;
+        machine.finish(tokens::add);
+    }
+
+    /**
+     * Get the tokens of the text as last edited.
+     *
+     * @return the tokens, as a read-only view
+     */
+    public List<T> tokens() {
+        return Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * Update the tokens after an edit.
+     *
+     * @param text     the whole text, after the edit
+     * @param offset   the offset of the edit
+     * @param removed  the number of characters removed at the offset
+     * @param inserted the number of characters inserted at the offset
+     * @return the tokens that changed
+     */
+    public Change<T> edit(CharSequence text, int offset, int removed, int inserted) {
+        Assertion.notNull(text, "text cannot be null");
+        Objects.checkFromIndexSize(offset, removed, length);
+        Objects.checkFromIndexSize(offset, inserted, text.length());
+        Assertion.isEqual(text.length(), length - removed + inserted, "the text does not match the edit");
+
+        int start = checkpoints.before(offset);
+        long from = checkpoints.offset(start);
+        Relex relex = new Relex(start, offset + inserted, inserted - removed);
+
+        LexStateMachine<S, T> machine = stateMachine.duplicate();
+        boolean cr = from > 0 && text.charAt((int) from - 1) == Characters.CP_CR;
+        machine.seek(from, checkpoints.state(start), cr, checkpoints.position(start));
+        machine.boundary = relex;
+        Predicate<T> sink = relex::accept;
+        machine.process(sink, text, (int) from, text.length());
+        machine.boundary = null;
+        if (relex.sync < 0) {
+            machine.finish(sink);
+        }
+
+        int first = checkpoints.count(start);
+        int last = relex.sync < 0 ? tokens.size() : checkpoints.count(relex.sync);
+        List<T> fresh = relex.inserted;
+        length = text.length();
+        splice(start, relex);
+
+        //the tokens lexed again on either side of the edit usually come out the same
+        int head = 0;
+        while (first + head < last && head < fresh.size() && Objects.equals(tokens.get(first + head), fresh.get(head))) {
+            head++;
+        }
+        int tail = 0;
+        while (first + head < last - tail
+            && head < fresh.size() - tail
+            && Objects.equals(tokens.get(last - tail - 1), fresh.get(fresh.size() - tail - 1))) {
+            tail++;
+        }
+
+        List<T> changed = fresh.subList(head, fresh.size() - tail);
+        tokens.replace(first + head, last - tail, changed);
+        return new Change<>(first + head, last - tail - first - head, Collections.unmodifiableList(changed));
+    }
+
+    /**
+     * Replace the checkpoints between the start of lexing and the point where it caught up with the old ones.
+     * The old checkpoints after that point are moved by the edit.
+     *
+     * @param start the index of the checkpoint lexing started from
+     * @param relex the result of lexing
+     */
+    private void splice(int start, Relex relex) {
+        long from = checkpoints.offset(start);
+        checkpoints.remove(start + 1, relex.sync < 0 ? checkpoints.size : relex.sync);
+        if (relex.sync >= 0) {
+            long old = checkpoints.position(start + 1);
+            int lines = TokenSpan.line(relex.position) - TokenSpan.line(old);
+            int columns = TokenSpan.column(relex.position) - TokenSpan.column(old);
+            int added = checkpoints.count(start) + relex.inserted.size() - checkpoints.count(start + 1);
+            checkpoints.shift(relex.delta, lines, columns, added);
+        }
+
+        Checkpoints fresh = relex.fresh;
+        for (int i = 0; i < fresh.size; i++) {
+            if (fresh.offset(i) > from) {
+                checkpoints.insert(fresh.offset(i), fresh.state(i), fresh.position(i), fresh.count(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import com.github.ncoe.tchotchke.function.CodePointPredicate;
+
+import java.util.ArrayDeque;
+
+/**
+ * Lex table testing the predicates of a state in order.
+ *
+ * <p>A deferral is followed by testing the predicates of the next state, without returning to the machine.
+ * Supplementary code points are only seen when lexing code points, in which case every predicate
+ * is a {@link CodePointPredicate}; everything else is tested as a {@code char}.
+ */
+final class InterpretedTable implements LexTable {
+    private final CharacterPredicate[][] predicates;
+    private final int[][] cells;
+
+    /**
+     * Constructor
+     *
+     * @param predicates the predicates of each state
+     * @param cells      the cell matching each predicate
+     */
+    InterpretedTable(CharacterPredicate[][] predicates, int[][] cells) {
+        this.predicates = predicates;
+        this.cells = cells;
+    }
+
+    /**
+     * Make sure that the deferrals of no character lead back to the state they start from, without compiling a table.
+     * Only the states on a loop of deferral entries are followed character by character,
+     * since the deferrals of the other states end after a few steps whatever the character.
+     *
+     * @param predicates the predicates of each state, which must all be code point predicates for code points
+     * @param cells      the cell matching each predicate
+     * @param codePoints true to check every code point, rather than only the characters
+     * @throws LexException if the deferrals of a character lead back to a state
+     */
+    static void checkDeferrals(CharacterPredicate[][] predicates, int[][] cells, boolean codePoints) {
+        InterpretedTable table = new InterpretedTable(predicates, cells);
+        int width = codePoints ? Character.MAX_CODE_POINT + 1 : Character.MAX_VALUE + 1;
+        for (int state = 0; state < cells.length; state++) {
+            if (!onLoop(cells, state)) {
+                continue;
+            }
+            for (int ch = 0; ch < width; ch++) {
+                int cell = table.match(state, ch);
+                for (int steps = 0; LexTable.defers(cell); steps++) {
+                    if (steps >= cells.length) {
+                        throw new LexException("Deferrals of U+%04X from state %d lead back to it", ch, state);
+                    }
+                    cell = table.match(LexTable.next(cell), ch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether following deferral entries from a state, whichever character they match, can lead back to it.
+     *
+     * @param cells the cell matching each predicate
+     * @param state the state
+     * @return true if the state is on a loop of deferral entries
+     */
+    private static boolean onLoop(int[][] cells, int state) {
+        boolean[] seen = new boolean[cells.length];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(state);
+        while (!queue.isEmpty()) {
+            for (int cell : cells[queue.remove()]) {
+                if (!LexTable.defers(cell)) {
+                    continue;
+                }
+                int next = LexTable.next(cell);
+                if (next == state) {
+                    return true;
+                }
+                if (!seen[next]) {
+                    seen[next] = true;
+                    queue.add(next);
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int transition(int state, int ch) {
+        int cell = match(state, ch);
+        while (LexTable.defers(cell)) {
+            cell = match(LexTable.next(cell), ch);
+        }
+        return cell;
+    }
+
+    private int match(int state, int ch) {
+        if (ch > Character.MAX_VALUE) {
+            return supplementary(state, ch);
+        }
+
+        CharacterPredicate[] row = predicates[state];
+        for (int i = 0; i < row.length; i++) {
+            if (row[i].test((char) ch)) {
+                return cells[state][i];
+            }
+        }
+        return NONE;
+    }
+
+    private int supplementary(int state, int codePoint) {
+        CharacterPredicate[] row = predicates[state];
+        for (int i = 0; i < row.length; i++) {
+            if (((CodePointPredicate) row[i]).test(codePoint)) {
+                return cells[state][i];
+            }
+        }
+        return NONE;
+    }
+}
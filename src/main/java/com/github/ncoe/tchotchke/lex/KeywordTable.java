@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal perfect hash over a set of keywords, looked up straight from the characters of a token.
+ *
+ * <p>Built with hash and displace: the keywords are spread over a few buckets, and starting with the largest bucket,
+ * a seed is searched for each one that sends all of its keywords to free slots.
+ * A lookup hashes the text twice and compares it with the single keyword that could match, without allocating.
+ *
+ * @param <T> the type of token
+ */
+final class KeywordTable<T> {
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_TRIES = 1 << 24;
+
+    private final int[] seeds;
+    private final String[] keys;
+    private final Object[] values;
+
+    private KeywordTable(int[] seeds, String[] keys, Object[] values) {
+        this.seeds = seeds;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Build the table.
+     *
+     * @param keywords the token of each keyword
+     * @param <T>      the type of token
+     * @return the table
+     */
+    static <T> KeywordTable<T> build(Map<String, ? extends T> keywords) {
+        List<String> keyList = new ArrayList<>(keywords.keySet());
+        int size = keyList.size();
+        int bucketCount = (size + BUCKET_SIZE - 1) / BUCKET_SIZE;
+
+        List<List<String>> buckets = new ArrayList<>();
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (String key : keyList) {
+            buckets.get(hash(0, key) % bucketCount).add(key);
+        }
+        Integer[] order = new Integer[bucketCount];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> buckets.get(i).size()).reversed());
+
+        int[] seeds = new int[bucketCount];
+        String[] keys = new String[size];
+        Object[] values = new Object[size];
+        int[] slots = new int[BUCKET_SIZE * 4];
+        for (int b : order) {
+            List<String> bucket = buckets.get(b);
+            if (slots.length < bucket.size()) {
+                slots = new int[bucket.size()];
+            }
+
+            int seed = 1;
+            while (!place(bucket, seed, keys, slots)) {
+                if (++seed == MAX_TRIES) {
+                    throw new LexException("Unable to build a perfect hash over the keywords %s", bucket);
+                }
+            }
+            seeds[b] = seed;
+            for (int i = 0; i < bucket.size(); i++) {
+                keys[slots[i]] = bucket.get(i);
+                values[slots[i]] = keywords.get(bucket.get(i));
+            }
+        }
+        return new KeywordTable<>(seeds, keys, values);
+    }
+
+    /**
+     * Find free and distinct slots for the keys of a bucket.
+     *
+     * @param bucket the keys
+     * @param seed   the seed to try
+     * @param keys   the keys already placed
+     * @param slots  receives the slot of each key
+     * @return true if the seed works
+     */
+    private static boolean place(List<String> bucket, int seed, String[] keys, int[] slots) {
+        for (int i = 0; i < bucket.size(); i++) {
+            int slot = hash(seed, bucket.get(i)) % keys.length;
+            if (keys[slot] != null) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (slots[j] == slot) {
+                    return false;
+                }
+            }
+            slots[i] = slot;
+        }
+        return true;
+    }
+
+    /**
+     * Hash text with a seed, using FNV-1a followed by a finalizer to mix the seed in.
+     *
+     * @param seed the seed
+     * @param text the text
+     * @return a non-negative hash
+     */
+    private static int hash(int seed, CharSequence text) {
+        int h = 0x811c9dc5 ^ seed * 0x9e3779b9;
+        for (int i = 0; i < text.length(); i++) {
+            h = (h ^ text.charAt(i)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Find the token of a keyword.
+     *
+     * @param text the text
+     * @return the token, or null if the text is not a keyword
+     */
+    @SuppressWarnings("unchecked")
+    T get(CharSequence text) {
+        int slot = hash(seeds[hash(0, text) % seeds.length], text) % keys.length;
+        String key = keys[slot];
+        if (key.length() != text.length() || !key.contentEquals(text)) {
+            return null;
+        }
+        return (T) values[slot];
+    }
+}
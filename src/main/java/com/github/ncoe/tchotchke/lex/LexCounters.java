@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The counters of a profiled state machine. Each machine has its own, updated without synchronization
+ * by the thread running it, and the counters of a machine and of its duplicates belong to the same {@link Family}.
+ */
+final class LexCounters {
+    private static final int ACTIONS = LexAction.values().length;
+
+    private final Family family;
+    private final long[] actions;
+    private long tokens;
+    private long dropped;
+    private int maxLength;
+
+    /**
+     * The counters of a machine and of its duplicates. Each machine adds its counters to the totals of the family
+     * when it finishes a run, so the family only holds on to the counters of the machines weakly,
+     * for the counts of the runs in progress. Those of a run dropped before it finishes are lost with its machine.
+     */
+    static final class Family {
+        private final Set<LexCounters> live = Collections.newSetFromMap(new WeakHashMap<>());
+        private final LexCounters retired;
+
+        /**
+         * Constructor
+         *
+         * @param states the number of states
+         */
+        Family(int states) {
+            this.retired = new LexCounters(this, states);
+        }
+
+        /**
+         * Create the counters of a machine.
+         *
+         * @return the counters
+         */
+        LexCounters join() {
+            LexCounters counters = new LexCounters(this, retired.actions.length / ACTIONS);
+            synchronized (this) {
+                live.add(counters);
+            }
+            return counters;
+        }
+
+        private synchronized void retire(LexCounters counters) {
+            retired.add(counters);
+            counters.clear();
+        }
+
+        /**
+         * Add up the counters of the family. The counts of the machines still running may be slightly behind.
+         *
+         * @param states the states
+         * @param <S>    the type of state
+         * @return the profile
+         */
+        synchronized <S> LexProfile<S> profile(List<S> states) {
+            LexCounters total = new LexCounters(this, states.size());
+            total.add(retired);
+            for (LexCounters counters : live) {
+                total.add(counters);
+            }
+            return new LexProfile<>(states, total.actions, total.tokens, total.dropped, total.maxLength);
+        }
+    }
+
+    private LexCounters(Family family, int states) {
+        this.family = family;
+        this.actions = new long[states * ACTIONS];
+    }
+
+    private void add(LexCounters counters) {
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] += counters.actions[i];
+        }
+        tokens += counters.tokens;
+        dropped += counters.dropped;
+        maxLength = Math.max(maxLength, counters.maxLength);
+    }
+
+    private void clear() {
+        Arrays.fill(actions, 0);
+        tokens = 0;
+        dropped = 0;
+        maxLength = 0;
+    }
+
+    /**
+     * Add the counters to the totals of the family, and start over, once the machine finishes a run.
+     */
+    void merge() {
+        family.retire(this);
+    }
+
+    /**
+     * Get the family of the counters, for the counters of a duplicate.
+     *
+     * @return the family
+     */
+    Family family() {
+        return family;
+    }
+
+    /**
+     * Count a transition.
+     *
+     * @param state  the state id
+     * @param action the action
+     */
+    void transition(int state, LexAction action) {
+        actions[state * ACTIONS + action.ordinal()]++;
+    }
+
+    /**
+     * Count the shifts of a run of characters.
+     *
+     * @param state  the state id
+     * @param length the number of characters
+     */
+    void run(int state, int length) {
+        actions[state * ACTIONS + LexAction.SHIFT.ordinal()] += length;
+    }
+
+    /**
+     * Count a token built from the text, or dropped by the token factory.
+     *
+     * @param length the length of the text
+     * @param built  true if a token was built
+     */
+    void token(int length, boolean built) {
+        if (built) {
+            tokens++;
+        } else {
+            dropped++;
+        }
+        maxLength = Math.max(maxLength, length);
+    }
+}
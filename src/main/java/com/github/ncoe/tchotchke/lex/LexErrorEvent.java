@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a {@link LexException} thrown to the caller, whether building, loading
+ * or running a state machine.
+ */
+@Name("com.github.ncoe.tchotchke.LexError")
+@Label("Lex Error")
+@Category({"Tchotchke", "Lex"})
+@Description("A lex exception was thrown to the caller")
+final class LexErrorEvent extends Event {
+    @Label("Message")
+    String message;
+}
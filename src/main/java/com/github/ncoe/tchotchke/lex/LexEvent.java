@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event for lexing a source with a {@link Tokenizer}, from the first token to the last.
+ * Like the file events of the JDK, only the sources that take a while are recorded by default.
+ */
+@Name("com.github.ncoe.tchotchke.Lex")
+@Label("Lex")
+@Category({"Tchotchke", "Lex"})
+@Description("Lexing a source into tokens")
+@StackTrace(false)
+@Threshold("20 ms")
+final class LexEvent extends Event {
+    @Label("Grammar")
+    @Description("The name of the state machine")
+    String grammar;
+
+    @Label("Characters")
+    @Description("The number of characters processed, or of bytes for byte sources")
+    long chars;
+
+    @Label("Tokens")
+    @Description("The number of tokens emitted")
+    long tokens;
+}
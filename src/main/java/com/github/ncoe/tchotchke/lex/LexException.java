@@ -8,6 +8,8 @@ package com.github.ncoe.tchotchke.lex;
  * Lex Exception
  */
 public final class LexException extends RuntimeException {
+    private transient boolean recorded;
+
     /**
      * Constructor
      *
@@ -17,4 +19,23 @@ public final class LexException extends RuntimeException {
     public LexException(String format, Object... args) {
         super(format.formatted(args));
     }
+
+    /**
+     * Commit the {@link LexErrorEvent} of the exception, once it is surfaced to the caller,
+     * so that the exceptions thrown and handled inside the library, such as those of speculative work, are not.
+     * Only the first call commits it.
+     *
+     * @return this
+     */
+    LexException record() {
+        if (!recorded) {
+            recorded = true;
+            LexErrorEvent event = new LexErrorEvent();
+            if (event.shouldCommit()) {
+                event.message = getMessage();
+                event.commit();
+            }
+        }
+        return this;
+    }
 }
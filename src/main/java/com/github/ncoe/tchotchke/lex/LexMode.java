@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+/**
+ * Lex Mode
+ */
+public enum LexMode {
+    /**
+     * Test the predicates of the current state in order for every character.
+     */
+    INTERPRETED,
+    /**
+     * Evaluate the predicates once while building, and look up every character in a table.
+     */
+    COMPILED,
+    /**
+     * Compile the table, then generate a class that finds the transition with branches instead of table reads.
+     * Meant for grammars that are built once and used for a long time, as generating the class takes a while.
+     *
+     * <p>Only the lookup of the transition is generated: the machine still unpacks the cell and applies the action
+     * the same way as in the other modes. When the ranges of characters do not fit the constant pool of a class,
+     * or the class cannot be defined, the compiled table is kept instead,
+     * as reported by {@link LexStateMachine#mode()}.
+     * The branches are not faster than the table reads of {@link #COMPILED} for every grammar,
+     * so measure both before choosing this mode.
+     */
+    GENERATED,
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.util.Assertion;
+
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * The counts of a profiled state machine and of its duplicates: the transitions taken by each state and action,
+ * the tokens built and dropped, and the longest token text.
+ * Characters appended in runs count as shifts of their state, and reductions that process a character again
+ * count as a transition each.
+ *
+ * @param <S> the type of state
+ */
+public final class LexProfile<S> {
+    private static final LexAction[] ACTIONS = LexAction.values();
+
+    private final List<S> states;
+    private final long[] actions;
+    private final long tokens;
+    private final long dropped;
+    private final int maxTokenLength;
+
+    /**
+     * Constructor
+     *
+     * @param states         the states
+     * @param actions        the count of each state and action
+     * @param tokens         the number of tokens built
+     * @param dropped        the number of texts the token factory dropped
+     * @param maxTokenLength the length of the longest token text
+     */
+    LexProfile(List<S> states, long[] actions, long tokens, long dropped, int maxTokenLength) {
+        this.states = states;
+        this.actions = actions;
+        this.tokens = tokens;
+        this.dropped = dropped;
+        this.maxTokenLength = maxTokenLength;
+    }
+
+    private int id(S state) {
+        int id = states.indexOf(state);
+        if (id < 0) {
+            throw new LexException("Unknown state %s", state).record();
+        }
+        return id;
+    }
+
+    /**
+     * Get the number of transitions of a state with an action.
+     *
+     * @param state  the state
+     * @param action the action
+     * @return the number of transitions
+     */
+    public long count(S state, LexAction action) {
+        Assertion.notNull(action, "action cannot be null");
+        return actions[id(state) * ACTIONS.length + action.ordinal()];
+    }
+
+    /**
+     * Get the number of transitions of a state.
+     *
+     * @param state the state
+     * @return the number of transitions
+     */
+    public long count(S state) {
+        int id = id(state);
+        long count = 0;
+        for (int i = 0; i < ACTIONS.length; i++) {
+            count += actions[id * ACTIONS.length + i];
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of transitions with an action.
+     *
+     * @param action the action
+     * @return the number of transitions
+     */
+    public long count(LexAction action) {
+        Assertion.notNull(action, "action cannot be null");
+        long count = 0;
+        for (int i = action.ordinal(); i < actions.length; i += ACTIONS.length) {
+            count += actions[i];
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of tokens built, including keywords.
+     *
+     * @return the number of tokens
+     */
+    public long tokens() {
+        return tokens;
+    }
+
+    /**
+     * Get the number of texts for which the token factory returned none, including at the end of each source.
+     *
+     * @return the number of texts
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the length of the longest text that was built, in UTF-16 units.
+     *
+     * @return the length
+     */
+    public int maxTokenLength() {
+        return maxTokenLength;
+    }
+
+    /**
+     * Add the counts of another profile of the same states, such as that of another machine of the same grammar.
+     *
+     * @param other the other profile
+     * @return the sum of the profiles
+     */
+    public LexProfile<S> merge(LexProfile<S> other) {
+        Assertion.notNull(other, "other cannot be null");
+        if (!states.equals(other.states)) {
+            throw new LexException("Cannot merge the profiles of different states").record();
+        }
+        long[] sum = actions.clone();
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += other.actions[i];
+        }
+        return new LexProfile<>(
+            states,
+            sum,
+            tokens + other.tokens,
+            dropped + other.dropped,
+            Math.max(maxTokenLength, other.maxTokenLength)
+        );
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "LexProfile{", "}");
+        joiner.add("tokens=" + tokens);
+        joiner.add("dropped=" + dropped);
+        joiner.add("maxTokenLength=" + maxTokenLength);
+        for (int i = 0; i < actions.length; i++) {
+            if (actions[i] != 0) {
+                joiner.add(states.get(i / ACTIONS.length) + "/" + ACTIONS[i % ACTIONS.length] + "=" + actions[i]);
+            }
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event sampled every {@link #SAMPLE} tokens while lexing a source, showing the throughput over time.
+ * It is disabled by default.
+ */
+@Name("com.github.ncoe.tchotchke.LexProgress")
+@Label("Lex Progress")
+@Category({"Tchotchke", "Lex"})
+@Description("Lexing the next tokens of a source")
+@StackTrace(false)
+@Enabled(false)
+final class LexProgressEvent extends Event {
+    /**
+     * The number of tokens between samples, a power of 2.
+     */
+    static final int SAMPLE = 1 << 16;
+
+    @Label("Grammar")
+    @Description("The name of the state machine")
+    String grammar;
+
+    @Label("Characters")
+    @Description("The number of characters processed since the previous sample, or of bytes for byte sources")
+    long chars;
+
+    @Label("Tokens")
+    @Description("The number of tokens emitted since the previous sample")
+    long tokens;
+}
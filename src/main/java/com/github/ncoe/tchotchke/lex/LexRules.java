@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import com.github.ncoe.tchotchke.option.Option;
+import com.github.ncoe.tchotchke.util.Assertion;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * Builds a state machine from an ordered list of rules, each a regular expression and the kind of its tokens.
+ *
+ * <p>The rules are compiled into a nondeterministic automaton, which the subset construction turns into
+ * a deterministic one, whose states become the states of a {@link LexStateMachine}. Each character is then
+ * a single transition, so lexing takes linear time whatever the rules, unlike backtracking regular expressions.
+ *
+ * <p>Tokens are the longest match: a token goes on while the next character can extend it, and ends
+ * when it cannot. The kind of the token is that of the first rule that matches its text. When a token
+ * cannot be extended after text that no rule matches, it goes back to the longest text that a rule matched,
+ * and the characters after it are lexed again, so {@code a|abc} lexes {@code abd} as {@code a}, then
+ * {@code b} and {@code d}. The characters lexed again are those after the longest match, which is usually
+ * a few, but can make lexing quadratic for rules like {@code a|a*b} on a long run of {@code a}.
+ * When no rule matched any of the text, such as an unterminated string, that text is a token of
+ * the error kind. So is any character that cannot start a token.
+ *
+ * <p>The regular expressions are a subset of those of {@link java.util.regex.Pattern}: literal characters,
+ * {@code .}, classes such as {@code [a-z_]} and {@code [^"]}, the escapes {@code \d \D \s \S \w \W \t \n \r \f},
+ * Unicode escapes, groups, alternation, and the quantifiers {@code * + ? {n} {n,} {n,m}}.
+ * The characters are UTF-16 units, and there are no anchors, lookarounds or back references.
+ *
+ * <p>The states of the machine are numbered, the initial one being {@code 0}.
+ * The token factory is given the kind of each token instead of its state, and is never given an empty token.
+ */
+public final class LexRules {
+    /**
+     * The most states of the nondeterministic automaton.
+     */
+    static final int MAX_NFA_STATES = 1 << 20;
+
+    private LexRules() {
+        //empty
+    }
+
+    /**
+     * Start building the rules.
+     *
+     * @param error the kind of the text that no rule matches
+     * @param <K>   the type of token kind
+     * @return the builder
+     */
+    public static <K> Builder<K> builder(K error) {
+        Assertion.notNull(error, "expected an error kind");
+        return new Builder<>(error);
+    }
+
+    /**
+     * A state of the nondeterministic automaton.
+     */
+    private static final class NfaState {
+        private final int id;
+        private final List<NfaState> epsilon = new ArrayList<>(2);
+        private int[] ranges;
+        private NfaState next;
+        private int rule = -1;
+
+        private NfaState(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A part of the automaton, with a single entry and a single exit.
+     *
+     * @param start the entry
+     * @param end   the exit
+     */
+    private record Fragment(NfaState start, NfaState end) {
+        //empty
+    }
+
+    /**
+     * Lex Rules Builder
+     *
+     * @param <K> the type of token kind
+     */
+    public static final class Builder<K> {
+        private final Map<String, K> ruleMap = new LinkedHashMap<>();
+        private final K error;
+        private final List<NfaState> nfa = new ArrayList<>();
+
+        private LexMode mode = LexMode.COMPILED;
+        private String name;
+
+        private Builder(K error) {
+            this.error = error;
+            this.name = error instanceof Enum<?> constant
+                ? constant.getDeclaringClass().getName()
+                : error.getClass().getName();
+        }
+
+        /**
+         * Set the name of the grammar, as recorded by the flight recorder events of the machine.
+         * By default, it is the name of the class of the token kinds.
+         *
+         * @param name the name
+         * @return this
+         */
+        public Builder<K> name(String name) {
+            Assertion.notNull(name, "name cannot be null");
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Set how the transitions are evaluated.
+         *
+         * @param mode the mode
+         * @return this
+         */
+        public Builder<K> mode(LexMode mode) {
+            Assertion.notNull(mode, "mode cannot be null");
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Add a rule, after the previous ones.
+         *
+         * @param regex the regular expression of the tokens, which must not match the empty string
+         * @param kind  the kind of the tokens
+         * @return this
+         */
+        public Builder<K> rule(String regex, K kind) {
+            Assertion.notNull(regex, "regex cannot be null");
+            Assertion.notNull(kind, "kind cannot be null");
+            if (ruleMap.containsKey(regex)) {
+                throw new LexException("Duplicate rule %s", regex).record();
+            }
+            ruleMap.put(regex, kind);
+            return this;
+        }
+
+        /**
+         * Build the lex state machine.
+         *
+         * @param factory the token factory, given the kind of each token
+         * @param <T>     the type of token
+         * @return the state machine
+         */
+        public <T> LexStateMachine<Integer, T> build(TokenSpanFactory<? super K, T> factory) {
+            Assertion.notNull(factory, "expected a token factory");
+            try {
+                return assemble(factory);
+            } catch (LexException e) {
+                throw e.record();
+            }
+        }
+
+        private <T> LexStateMachine<Integer, T> assemble(TokenSpanFactory<? super K, T> factory) {
+            if (ruleMap.isEmpty()) {
+                throw new LexException("No rules defined");
+            }
+
+            nfa.clear();
+            NfaState start = state();
+            List<K> ruleKinds = new ArrayList<>(ruleMap.size());
+            for (Map.Entry<String, K> entry : ruleMap.entrySet()) {
+                Regex.Node node = Regex.parse(entry.getKey());
+                if (Regex.nullable(node)) {
+                    throw new LexException("Rule %s matches the empty string", entry.getKey());
+                }
+                Fragment fragment = fragment(node);
+                fragment.end().rule = ruleKinds.size();
+                ruleKinds.add(entry.getValue());
+                start.epsilon.add(fragment.start());
+            }
+
+            return determinize(start, ruleKinds, factory);
+        }
+
+        private NfaState state() {
+            if (nfa.size() >= MAX_NFA_STATES) {
+                throw new LexException("Too many automaton states, at most %d are supported", MAX_NFA_STATES);
+            }
+            NfaState state = new NfaState(nfa.size());
+            nfa.add(state);
+            return state;
+        }
+
+        /**
+         * Build the part of the nondeterministic automaton that matches a tree.
+         *
+         * @param node the tree
+         * @return the part
+         */
+        private Fragment fragment(Regex.Node node) {
+            return switch (node) {
+                case Regex.Chars chars -> {
+                    NfaState start = state();
+                    NfaState end = state();
+                    start.ranges = chars.ranges();
+                    start.next = end;
+                    yield new Fragment(start, end);
+                }
+                case Regex.Concat concat -> {
+                    NfaState start = state();
+                    NfaState end = start;
+                    for (Regex.Node next : concat.nodes()) {
+                        Fragment fragment = fragment(next);
+                        end.epsilon.add(fragment.start());
+                        end = fragment.end();
+                    }
+                    yield new Fragment(start, end);
+                }
+                case Regex.Alt alt -> {
+                    NfaState start = state();
+                    NfaState end = state();
+                    for (Regex.Node next : alt.nodes()) {
+                        Fragment fragment = fragment(next);
+                        start.epsilon.add(fragment.start());
+                        fragment.end().epsilon.add(end);
+                    }
+                    yield new Fragment(start, end);
+                }
+                case Regex.Repeat repeat -> {
+                    NfaState start = state();
+                    NfaState end = start;
+                    for (int i = 0; i < repeat.min(); i++) {
+                        Fragment fragment = fragment(repeat.node());
+                        end.epsilon.add(fragment.start());
+                        end = fragment.end();
+                    }
+                    if (repeat.max() < 0) {
+                        NfaState loop = state();
+                        Fragment fragment = fragment(repeat.node());
+                        end.epsilon.add(loop);
+                        loop.epsilon.add(fragment.start());
+                        fragment.end().epsilon.add(loop);
+                        end = loop;
+                    } else if (repeat.max() > repeat.min()) {
+                        NfaState exit = state();
+                        for (int i = repeat.min(); i < repeat.max(); i++) {
+                            Fragment fragment = fragment(repeat.node());
+                            end.epsilon.add(fragment.start());
+                            end.epsilon.add(exit);
+                            end = fragment.end();
+                        }
+                        end.epsilon.add(exit);
+                        end = exit;
+                    }
+                    yield new Fragment(start, end);
+                }
+            };
+        }
+
+        /**
+         * Add the states reachable without reading a character.
+         *
+         * @param states the states
+         * @return the states
+         */
+        private BitSet closure(BitSet states) {
+            Deque<NfaState> pending = new ArrayDeque<>();
+            states.stream().forEach(id -> pending.push(nfa.get(id)));
+            while (!pending.isEmpty()) {
+                for (NfaState next : pending.pop().epsilon) {
+                    if (!states.get(next.id)) {
+                        states.set(next.id);
+                        pending.push(next);
+                    }
+                }
+            }
+            return states;
+        }
+
+        /**
+         * Run the subset construction, and build a state machine out of the deterministic automaton.
+         *
+         * @param start     the initial state of the nondeterministic automaton
+         * @param ruleKinds the kind of each rule
+         * @param factory   the token factory
+         * @param <T>       the type of token
+         * @return the state machine
+         */
+        private <T> LexStateMachine<Integer, T> determinize(
+            NfaState start,
+            List<K> ruleKinds,
+            TokenSpanFactory<? super K, T> factory
+        ) {
+            //split the characters into intervals that every transition either covers or misses
+            TreeSet<Integer> bounds = new TreeSet<>();
+            bounds.add(0);
+            for (NfaState state : nfa) {
+                if (state.ranges != null) {
+                    for (int i = 0; i < state.ranges.length; i += 2) {
+                        bounds.add(state.ranges[i]);
+                        bounds.add(state.ranges[i + 1] + 1);
+                    }
+                }
+            }
+            bounds.remove(Character.MAX_VALUE + 1);
+            int[] lows = bounds.stream().mapToInt(Integer::intValue).toArray();
+
+            //the intervals covered by each transition
+            int[][] covered = new int[nfa.size()][];
+            for (NfaState state : nfa) {
+                if (state.ranges != null) {
+                    covered[state.id] = IntStream.range(0, lows.length)
+                        .filter(k -> contains(state.ranges, lows[k]))
+                        .toArray();
+                }
+            }
+
+            BitSet initial = new BitSet();
+            initial.set(start.id);
+            List<BitSet> dfa = new ArrayList<>();
+            Map<BitSet, Integer> ids = new HashMap<>();
+            dfa.add(closure(initial));
+            ids.put(initial, 0);
+
+            List<K> kinds = new ArrayList<>();
+            List<Boolean> accepting = new ArrayList<>();
+            LexStateMachine.Builder<Integer, T> builder = LexStateMachine.spanBuilder(0, (id, span, end) -> {
+                if (span.isEmpty()) {
+                    return Option.none();
+                }
+                return factory.invoke(kinds.get(id), span, end);
+            });
+
+            for (int id = 0; id < dfa.size(); id++) {
+                BitSet states = dfa.get(id);
+                int rule = states.stream().map(i -> nfa.get(i).rule).filter(i -> i >= 0).min().orElse(-1);
+                kinds.add(rule < 0 ? error : ruleKinds.get(rule));
+                accepting.add(rule >= 0);
+
+                BitSet[] moves = new BitSet[lows.length];
+                for (int i = states.nextSetBit(0); i >= 0; i = states.nextSetBit(i + 1)) {
+                    NfaState state = nfa.get(i);
+                    if (state.ranges != null) {
+                        for (int k : covered[i]) {
+                            if (moves[k] == null) {
+                                moves[k] = new BitSet();
+                            }
+                            moves[k].set(state.next.id);
+                        }
+                    }
+                }
+
+                //join the intervals leading to the same state into one transition
+                Map<Integer, int[]> targets = new LinkedHashMap<>();
+                for (int k = 0; k < lows.length; k++) {
+                    if (moves[k] != null) {
+                        BitSet next = closure(moves[k]);
+                        Integer target = ids.get(next);
+                        if (target == null) {
+                            if (dfa.size() >= LexTable.MAX_STATES) {
+                                throw new LexException(
+                                    "Too many states, at most %d are supported",
+                                    LexTable.MAX_STATES
+                                );
+                            }
+                            target = dfa.size();
+                            ids.put(next, target);
+                            dfa.add(next);
+                        }
+                        int hi = k + 1 < lows.length ? lows[k + 1] - 1 : Character.MAX_VALUE;
+                        targets.merge(target, new int[]{lows[k], hi}, Regex::union);
+                    }
+                }
+
+                for (Map.Entry<Integer, int[]> entry : targets.entrySet()) {
+                    builder.add(id, predicate(entry.getValue()), LexAction.SHIFT, entry.getKey());
+                }
+                //the token cannot go on: a character that cannot start one is an error on its own
+                builder.add(id, Characters.any(), id == 0 ? LexAction.SHIFT_REDUCE : LexAction.REDUCE, 0);
+            }
+
+            return builder
+                .name(name)
+                .mode(mode)
+                .minimize((lhs, rhs) -> Objects.equals(kinds.get(lhs), kinds.get(rhs))
+                    && accepting.get(lhs).equals(accepting.get(rhs)))
+                .backtrack(accepting::get)
+                .build();
+        }
+    }
+
+    private static boolean contains(int[] ranges, int ch) {
+        int lo = 0;
+        int hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ch < ranges[2 * mid]) {
+                hi = mid - 1;
+            } else if (ch > ranges[2 * mid + 1]) {
+                lo = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static CharacterPredicate predicate(int[] ranges) {
+        if (ranges.length == 2) {
+            return Characters.inclusive(ranges[0], ranges[1]);
+        }
+        return ch -> contains(ranges, ch);
+    }
+}
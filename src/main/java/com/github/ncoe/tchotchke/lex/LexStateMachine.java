@@ -5,13 +5,25 @@
 package com.github.ncoe.tchotchke.lex;
 
 import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import com.github.ncoe.tchotchke.function.CodePointPredicate;
 import com.github.ncoe.tchotchke.option.Option;
 import com.github.ncoe.tchotchke.util.Assertion;
 
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
 import java.util.function.Predicate;
 
 /**
@@ -25,19 +37,129 @@ public final class LexStateMachine<S, T> {
         //empty
     }
 
+    private record Signature(int[] cells) {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Signature other && Arrays.equals(cells, other.cells);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(cells);
+        }
+    }
+
+    /**
+     * Observer of the points between tokens.
+     */
+    @FunctionalInterface
+    interface Boundary {
+        /**
+         * The machine has an empty token, and is about to process the character at an offset.
+         *
+         * @param offset   the offset of the next character
+         * @param state    the state id
+         * @param position the packed line and column of the next character
+         */
+        void mark(long offset, int state, long position);
+    }
+
+    /**
+     * The version of the snapshot encoding.
+     */
+    private static final byte SNAPSHOT_VERSION = 1;
+
+    private static final int SNAPSHOT_CR = 1;
+    private static final int SNAPSHOT_HIGH = 2;
+    private static final int SNAPSHOT_PENDING = 4;
+    private static final int SNAPSHOT_DEFERRED = 8;
+    private static final int SNAPSHOT_ACCEPT = 16;
+    private static final int SNAPSHOT_REPLAY = 32;
+
+    /**
+     * The most characters copied at a time from text that is not in an array.
+     */
+    static final int CHUNK_SIZE = 8192;
+
     private final StringBuilder builder = new StringBuilder();
-    private final Map<S, List<Entry<S>>> stateMap;
-    private final TokenFactory<S, T> factory;
-    private final S init;
+    private final TokenSpan span = new TokenSpan(builder);
+    private final LexTable table;
+    private final CompiledTable compiled;
+    private final boolean[] loops;
+    private final char[][] runs;
+    private final KeywordTable<T>[] keywords;
+    private final boolean[] accepting;
+    private final List<S> states;
+    private final TokenSpanFactory<S, T> factory;
+    private final CharacterPredicate resync;
+    private final boolean codePoints;
+    private final int surrogates;
+    private final int init;
+    private final String name;
+    private final LexCounters counters;
+
+    Boundary boundary;
+
+    private int state;
+    private int pending = -1;
+    private long offset;
+    private long limit;
+    private long position = TokenSpan.position(1, 1);
+    private boolean cr;
+    private int high = -1;
+    private int highWidth;
+    private int deferred = -1;
+    private int deferredWidth;
+    private char[] scratch;
+
+    //the longest match of a token that went past it, and the characters after it
+    private int acceptLength = -1;
+    private int acceptState;
+    private long acceptEnd;
+    private long acceptPosition;
+    private int overCount;
+    private int[] overChars;
+    private long[] overStarts;
 
-    private S state;
+    //the characters to process again, the next one last
+    private int replayCount;
+    private int[] replayChars;
+    private long[] replayStarts;
+    private long[] replayEnds;
+    private boolean replaying;
+    private long horizon;
 
-    private LexStateMachine(Map<S, List<Entry<S>>> stateMap, TokenFactory<S, T> factory, S init) {
-        this.stateMap = stateMap;
+    private LexStateMachine(
+        LexTable table,
+        CompiledTable compiled,
+        boolean[] loops,
+        char[][] runs,
+        KeywordTable<T>[] keywords,
+        boolean[] accepting,
+        List<S> states,
+        TokenSpanFactory<S, T> factory,
+        CharacterPredicate resync,
+        boolean codePoints,
+        int init,
+        String name,
+        LexCounters.Family family
+    ) {
+        this.table = table;
+        this.compiled = compiled;
+        this.loops = loops;
+        this.runs = runs;
+        this.keywords = keywords;
+        this.accepting = accepting;
+        this.states = states;
         this.factory = factory;
+        this.resync = resync;
+        this.codePoints = codePoints;
+        this.surrogates = codePoints ? Character.MAX_SURROGATE - Character.MIN_SURROGATE + 1 : 0;
 
         this.init = init;
         this.state = init;
+        this.name = name;
+        this.counters = family == null ? null : family.join();
     }
 
     /**
@@ -46,31 +168,508 @@ public final class LexStateMachine<S, T> {
      * @return a new state machine
      */
     public LexStateMachine<S, T> duplicate() {
-        return new LexStateMachine<>(stateMap, factory, init);
+        return new LexStateMachine<>(
+            table,
+            compiled,
+            loops,
+            runs,
+            keywords,
+            accepting,
+            states,
+            factory,
+            resync,
+            codePoints,
+            init,
+            name,
+            counters == null ? null : counters.family()
+        );
     }
 
     /**
-     * Consume the token text.
+     * Add up the counts of the machine and of its duplicates, when it was built with
+     * {@link Builder#profile(boolean) profiling}. The counts of machines still running may be slightly behind.
      *
-     * @return the text
+     * @return the profile
      */
-    String consume() {
-        String text = builder.toString();
-        builder.setLength(0);
-        return text;
+    public LexProfile<S> profile() {
+        if (counters == null) {
+            throw new LexException("The state machine was not built with profiling").record();
+        }
+        return counters.family().profile(states);
+    }
+
+    /**
+     * Save the compiled table of a {@link LexMode#COMPILED} or {@link LexMode#GENERATED} machine,
+     * so that it can be loaded without building it again. The generated lookup class is not saved,
+     * so a machine saved in mode {@link LexMode#GENERATED} is loaded in mode {@link LexMode#COMPILED}.
+     * An {@link LexMode#INTERPRETED} machine cannot be saved, even when it was minimized with a compiled table,
+     * rather than being loaded in another mode.
+     * The states are saved by name, using {@link Object#toString()}, and the token factory is not saved.
+     * Keywords map to tokens that cannot be saved, so a machine with keywords cannot be saved either.
+     *
+     * @param path the path of the file
+     * @throws IOException if the file cannot be written
+     * @throws LexException if the machine is interpreted, or has keywords
+     * @see #load(Path, Function, TokenSpanFactory)
+     */
+    public void save(Path path) throws IOException {
+        Assertion.notNull(path, "path cannot be null");
+        if (mode() == LexMode.INTERPRETED) {
+            throw new LexException(
+                "Only a compiled state machine can be saved, not one in mode %s",
+                LexMode.INTERPRETED
+            ).record();
+        }
+        if (keywords != null) {
+            throw new LexException("A state machine with keywords cannot be saved").record();
+        }
+        List<String> names = states.stream().map(Object::toString).toList();
+        try {
+            TableFile.save(path, new TableFile.Contents(compiled, names, init, codePoints, resync, accepting));
+        } catch (LexException e) {
+            throw e.record();
+        }
     }
 
     /**
-     * Conditionally call the consumer
+     * Load a state machine saved by {@link #save(Path)}, which runs in mode {@link LexMode#COMPILED},
+     * whichever mode the saved machine ran in.
+     * The file is mapped, and no predicate is evaluated.
+     *
+     * @param path    the path of the file
+     * @param names   the state of each name
+     * @param factory the token factory
+     * @param <S>     the type of state
+     * @param <T>     the type of token
+     * @return the state machine
+     * @throws IOException if the file cannot be read
+     * @throws LexException if the file is not a valid state machine file
+     */
+    public static <S, T> LexStateMachine<S, T> load(
+        Path path,
+        Function<String, ? extends S> names,
+        TokenSpanFactory<S, T> factory
+    ) throws IOException {
+        Assertion.notNull(path, "path cannot be null");
+        Assertion.notNull(names, "names cannot be null");
+        Assertion.notNull(factory, "factory cannot be null");
+
+        TableFile.Contents contents;
+        try {
+            contents = TableFile.load(path);
+        } catch (LexException e) {
+            throw e.record();
+        }
+        List<S> states = new ArrayList<>();
+        for (String name : contents.names()) {
+            S state = names.apply(name);
+            if (state == null) {
+                throw new LexException("No state is named %s", name).record();
+            }
+            states.add(state);
+        }
+
+        CompiledTable table = contents.compiled();
+        boolean[] loops = new boolean[states.size()];
+        for (int id = 0; id < states.size(); id++) {
+            for (int cls = 0; cls < table.classCount(); cls++) {
+                int cell = table.cell(id, cls);
+                loops[id] |= cell != LexTable.NONE
+                    && LexTable.action(cell) == LexAction.SHIFT
+                    && LexTable.next(cell) == id;
+            }
+        }
+        char[][] runs = VectorSupport.ENABLED ? VectorSupport.ranges(table, loops) : null;
+        return new LexStateMachine<>(
+            table,
+            table,
+            loops,
+            runs,
+            null,
+            contents.accepting(),
+            List.copyOf(states),
+            factory,
+            contents.resync(),
+            contents.codePoints(),
+            contents.init(),
+            path.getFileName().toString(),
+            null
+        );
+    }
+
+    /**
+     * Save where the machine is in the source: the current state, the text of the token being built,
+     * the offset, line and column, and any character held between calls.
+     * A machine built from the same grammar can carry on from there with {@link #restore(byte[])},
+     * for example in another process.
+     *
+     * <p>The encoding is a few fixed fields, followed by the token text as UTF-16 units.
+     *
+     * @return the snapshot
+     */
+    public byte[] snapshot() {
+        int flags = (cr ? SNAPSHOT_CR : 0)
+            | (high >= 0 ? SNAPSHOT_HIGH : 0)
+            | (pending >= 0 ? SNAPSHOT_PENDING : 0)
+            | (deferred >= 0 ? SNAPSHOT_DEFERRED : 0)
+            | (acceptLength >= 0 ? SNAPSHOT_ACCEPT : 0)
+            | (replayCount > 0 ? SNAPSHOT_REPLAY : 0);
+        int size = 1 + 4 + 4 + 1 + 3 * Long.BYTES + 4
+            + (high >= 0 ? 6 : 0)
+            + (pending >= 0 ? 4 : 0)
+            + (deferred >= 0 ? 6 : 0)
+            + (acceptLength >= 0 ? 3 * 4 + 2 * Long.BYTES + overCount * (4 + Long.BYTES) : 0)
+            + (replayCount > 0 ? 4 + replayCount * (4 + 2 * Long.BYTES) : 0)
+            + (builder.isEmpty() ? 0 : 3 * Long.BYTES + 2 * builder.length());
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(SNAPSHOT_VERSION);
+        buffer.putInt(states.size());
+        buffer.putInt(state);
+        buffer.put((byte) flags);
+        buffer.putLong(offset);
+        buffer.putLong(limit);
+        buffer.putLong(position);
+        if (high >= 0) {
+            buffer.putChar((char) high);
+            buffer.putInt(highWidth);
+        }
+        if (pending >= 0) {
+            buffer.putInt(pending);
+        }
+        if (deferred >= 0) {
+            buffer.putChar((char) deferred);
+            buffer.putInt(deferredWidth);
+        }
+        if (acceptLength >= 0) {
+            buffer.putInt(acceptLength);
+            buffer.putInt(acceptState);
+            buffer.putLong(acceptEnd);
+            buffer.putLong(acceptPosition);
+            buffer.putInt(overCount);
+            for (int i = 0; i < overCount; i++) {
+                buffer.putInt(overChars[i]);
+                buffer.putLong(overStarts[i]);
+            }
+        }
+        if (replayCount > 0) {
+            buffer.putInt(replayCount);
+            for (int i = 0; i < replayCount; i++) {
+                buffer.putInt(replayChars[i]);
+                buffer.putLong(replayStarts[i]);
+                buffer.putLong(replayEnds[i]);
+            }
+        }
+        buffer.putInt(builder.length());
+        if (!builder.isEmpty()) {
+            buffer.putLong(span.start);
+            buffer.putLong(span.end);
+            buffer.putLong(span.position);
+            for (int i = 0; i < builder.length(); i++) {
+                buffer.putChar(builder.charAt(i));
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Carry on from a snapshot, taken from a machine built from the same grammar.
+     *
+     * @param snapshot the snapshot
+     * @see #snapshot()
+     */
+    public void restore(byte[] snapshot) {
+        Assertion.notNull(snapshot, "snapshot cannot be null");
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            if (buffer.get() != SNAPSHOT_VERSION) {
+                throw new LexException("Unsupported snapshot version %d", snapshot[0]);
+            }
+            int count = buffer.getInt();
+            int id = buffer.getInt();
+            if (count != states.size() || id < 0 || id >= count) {
+                throw new LexException("The snapshot is of a machine with %d states, not %d", count, states.size());
+            }
+
+            int flags = buffer.get();
+            long at = buffer.getLong();
+            long end = buffer.getLong();
+            long where = buffer.getLong();
+            int unit = -1;
+            int unitWidth = 0;
+            if ((flags & SNAPSHOT_HIGH) != 0) {
+                unit = buffer.getChar();
+                unitWidth = buffer.getInt();
+            }
+            int held = (flags & SNAPSHOT_PENDING) != 0 ? buffer.getInt() : -1;
+            int next = -1;
+            int nextWidth = 0;
+            if ((flags & SNAPSHOT_DEFERRED) != 0) {
+                next = buffer.getChar();
+                nextWidth = buffer.getInt();
+            }
+            int accept = -1;
+            int acceptId = 0;
+            long acceptAt = 0;
+            long acceptWhere = 0;
+            int over = 0;
+            int[] chars = null;
+            long[] starts = null;
+            if ((flags & SNAPSHOT_ACCEPT) != 0) {
+                accept = buffer.getInt();
+                acceptId = buffer.getInt();
+                acceptAt = buffer.getLong();
+                acceptWhere = buffer.getLong();
+                over = buffer.getInt();
+                if (accept < 0 || acceptId < 0 || acceptId >= count || over < 0 || over > buffer.remaining()) {
+                    throw new LexException("The snapshot has a bad longest match");
+                }
+                chars = new int[over];
+                starts = new long[over];
+                for (int i = 0; i < over; i++) {
+                    chars[i] = buffer.getInt();
+                    starts[i] = buffer.getLong();
+                }
+            }
+            int replays = 0;
+            int[] replayed = null;
+            long[] replayedStarts = null;
+            long[] replayedEnds = null;
+            if ((flags & SNAPSHOT_REPLAY) != 0) {
+                replays = buffer.getInt();
+                if (replays < 0 || replays > buffer.remaining()) {
+                    throw new LexException("The snapshot has %d characters to process again", replays);
+                }
+                replayed = new int[replays];
+                replayedStarts = new long[replays];
+                replayedEnds = new long[replays];
+                for (int i = 0; i < replays; i++) {
+                    replayed[i] = buffer.getInt();
+                    replayedStarts[i] = buffer.getLong();
+                    replayedEnds[i] = buffer.getLong();
+                }
+            }
+            if ((accept >= 0 || replays > 0) && accepting == null) {
+                throw new LexException("The snapshot is of a machine that backtracks");
+            }
+
+            int length = buffer.getInt();
+            builder.setLength(0);
+            if (length > 0) {
+                span.start = buffer.getLong();
+                span.end = buffer.getLong();
+                span.position = buffer.getLong();
+                for (int i = 0; i < length; i++) {
+                    builder.append(buffer.getChar());
+                }
+            }
+
+            state = id;
+            cr = (flags & SNAPSHOT_CR) != 0;
+            offset = at;
+            limit = end;
+            position = where;
+            high = unit;
+            highWidth = unitWidth;
+            pending = held;
+            deferred = next;
+            deferredWidth = nextWidth;
+            acceptLength = accept;
+            acceptState = acceptId;
+            acceptEnd = acceptAt;
+            acceptPosition = acceptWhere;
+            overCount = over;
+            overChars = chars;
+            overStarts = starts;
+            replayCount = replays;
+            replayChars = replayed;
+            replayStarts = replayedStarts;
+            replayEnds = replayedEnds;
+        } catch (BufferUnderflowException e) {
+            throw new LexException("The snapshot is truncated").record();
+        } catch (LexException e) {
+            throw e.record();
+        }
+    }
+
+    /**
+     * Get how the transitions of the machine are evaluated.
+     * A machine built in mode {@link LexMode#GENERATED} reports {@link LexMode#COMPILED}
+     * when the class could not be generated, and kept the compiled table instead.
+     *
+     * @return the mode in effect
+     */
+    public LexMode mode() {
+        return switch (table) {
+            case InterpretedTable _ -> LexMode.INTERPRETED;
+            case CompiledTable _ -> LexMode.COMPILED;
+            default -> LexMode.GENERATED;
+        };
+    }
+
+    /**
+     * Get the characters after which the input may be split, to lex the parts in parallel.
+     *
+     * @return the predicate, or null if the input may not be split
+     */
+    CharacterPredicate resync() {
+        return resync;
+    }
+
+    /**
+     * Check whether surrogate pairs are matched as a single code point.
+     *
+     * @return true when lexing code points
+     */
+    boolean codePoints() {
+        return codePoints;
+    }
+
+    /**
+     * Get the name of the grammar, for the flight recorder events.
+     *
+     * @return the name
+     */
+    String name() {
+        return name;
+    }
+
+    /**
+     * Get the number of source units processed so far.
+     *
+     * @return the offset of the next character
+     */
+    long offset() {
+        return offset;
+    }
+
+    /**
+     * Get the number of states.
+     *
+     * @return the count
+     */
+    int stateCount() {
+        return states.size();
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return the state id
+     */
+    int state() {
+        return state;
+    }
+
+    /**
+     * Move to a point in the source, as if the characters before it had been processed.
+     *
+     * @param offset   the offset of the next character
+     * @param state    the state id
+     * @param cr       the previous character was a carriage return
+     * @param position the packed line and column of the next character
+     */
+    void seek(long offset, int state, boolean cr, long position) {
+        this.offset = offset;
+        this.state = state;
+        this.cr = cr;
+        this.position = position;
+        this.acceptLength = -1;
+        this.replayCount = 0;
+    }
+
+    /**
+     * Finish processing at the end of the source: characters left by a declined token or held between calls
+     * are processed, and the last token is built.
+     *
+     * @param downstream the downstream
+     * @return true if the source was finished, false if the downstream declined more tokens first
+     */
+    public boolean finish(Predicate<T> downstream) {
+        try {
+            if (!resume(downstream) || !flush(downstream)) {
+                return false;
+            }
+            consume(downstream);
+            return true;
+        } catch (LexException e) {
+            throw e.record();
+        }
+    }
+
+    /**
+     * Conditionally call the consumer with the end token, and add the counts of the run to the profile.
      *
      * @param consumer the consumer
      */
     void consume(Predicate<T> consumer) {
-        String text = builder.toString();
-        Option<T> tokenOpt = factory.invoke(state, text, true);
+        T keyword = keyword(state);
+        if (keyword != null) {
+            if (counters != null) {
+                counters.token(builder.length(), true);
+                counters.merge();
+            }
+            builder.setLength(0);
+            consumer.test(keyword);
+            return;
+        }
+        Option<T> tokenOpt = invoke(state, true);
+        count(tokenOpt);
+        if (counters != null) {
+            counters.merge();
+        }
         consume(consumer, tokenOpt);
     }
 
+    /**
+     * Build the token from the current text, and reset the text.
+     *
+     * @param downstream the downstream
+     * @param prev       the state that produced the token
+     * @return true if more tokens can be accepted
+     */
+    private boolean reduce(Predicate<T> downstream, int prev) {
+        acceptLength = -1;
+        T keyword = keyword(prev);
+        if (keyword != null) {
+            if (counters != null) {
+                counters.token(builder.length(), true);
+            }
+            builder.setLength(0);
+            return downstream.test(keyword);
+        }
+        Option<T> tokenOpt = invoke(prev, false);
+        count(tokenOpt);
+        builder.setLength(0);
+        return consume(downstream, tokenOpt);
+    }
+
+    /**
+     * Look up the current text among the keywords of a state, without going through the token factory.
+     *
+     * @param prev the state that produced the token
+     * @return the token of the keyword, or null if the text is not a keyword of the state
+     */
+    private T keyword(int prev) {
+        KeywordTable<T> table = keywords == null ? null : keywords[prev];
+        return table == null || builder.isEmpty() ? null : table.get(builder);
+    }
+
+    private void count(Option<T> tokenOpt) {
+        if (counters != null) {
+            counters.token(builder.length(), tokenOpt instanceof Option.Some<T>);
+        }
+    }
+
+    private Option<T> invoke(int prev, boolean end) {
+        if (builder.isEmpty()) {
+            span.start = offset;
+            span.end = offset;
+            span.position = position;
+        }
+        return factory.invoke(states.get(prev), span, end);
+    }
+
     private boolean consume(Predicate<T> downstream, Option<T> tokenOpt) {
         return switch (tokenOpt) {
             case Option.None<T> _ -> true;
@@ -81,57 +680,537 @@ public final class LexStateMachine<S, T> {
 
     /**
      * Process the next character.
+     * The characters interrupted by the downstream declining more tokens are finished first,
+     * and when the downstream declines again, the character is held until the next call.
      *
      * @param downstream the downstream
      * @param ch         the character
      * @return true if more tokens can be accepted
+     * @throws LexException if the downstream declines again while a character is already held
      */
     public boolean process(Predicate<T> downstream, char ch) {
-        return process(downstream, ch, 0);
-    }
-
-    private boolean process(Predicate<T> downstream, char ch, int depth) {
-        List<Entry<S>> entryList = stateMap.get(state);
-        Assertion.notNull(entryList, "Unexpected state: %d", state);
-        Assertion.isLess(depth, 3, "Bailing from potential stack overflow in state %s", state);
-
-        S prev = state;
-        for (Entry<S> entry : entryList) {
-            if (entry.predicate.test(ch)) {
-                state = entry.next;
-
-                return switch (entry.action) {
-                    case DEFER -> process(downstream, ch, depth + 1);
-                    case REDUCE -> {
-                        String text = consume();
-                        Option<T> tokenOpt = factory.invoke(prev, text, false);
-                        if (consume(downstream, tokenOpt)) {
-                            yield process(downstream, ch, depth + 1);
-                        }
-                        yield false;
-                    }
-                    case SHIFT -> {
-                        builder.append(ch);
-                        yield true;
+        try {
+            if (!resume(downstream)) {
+                if (deferred >= 0) {
+                    throw new LexException("The downstream declined more tokens while %c is held", (char) deferred);
+                }
+                //a negative width marks a character that is not fed, so its line ending is not normalized
+                deferred = ch;
+                deferredWidth = -1;
+                return false;
+            }
+            return process(downstream, ch, 1);
+        } catch (LexException e) {
+            throw e.record();
+        }
+    }
+
+    /**
+     * Process a range of characters.
+     * Unlike {@link #process(Predicate, char)}, line endings are normalized and surrogate pairs are combined
+     * the same way as a {@link Tokenizer} does.
+     * Runs of characters that the current state shifts onto itself are appended in one step.
+     *
+     * <p>When the downstream declines more tokens, the character being processed is remembered,
+     * and finished by the next call.
+     *
+     * @param downstream the downstream
+     * @param text       the text
+     * @param from       the index of the first character (inclusive)
+     * @param to         the index of the last character (exclusive)
+     * @return the index of the next character to process, which is less than {@code to} when the downstream declined
+     */
+    public int process(Predicate<T> downstream, CharSequence text, int from, int to) {
+        try {
+            return lex(downstream, text, from, to);
+        } catch (LexException e) {
+            throw e.record();
+        }
+    }
+
+    /**
+     * Process a range of characters, as {@link #process(Predicate, CharSequence, int, int)} does,
+     * but leave the errors for the caller to record, when the tokens may be thrown away.
+     *
+     * @param downstream the downstream
+     * @param text       the text
+     * @param from       the index of the first character (inclusive)
+     * @param to         the index of the last character (exclusive)
+     * @return the index of the next character to process, which is less than {@code to} when the downstream declined
+     */
+    int lex(Predicate<T> downstream, CharSequence text, int from, int to) {
+        Objects.checkFromToIndex(from, to, text.length());
+        if (!resume(downstream)) {
+            return from;
+        }
+
+        //copy a chunk at a time into the buffer of the machine, so the runs can be scanned in an array
+        int size = Math.min(to - from, CHUNK_SIZE);
+        if (scratch == null || scratch.length < size) {
+            scratch = new char[size];
+        }
+        char[] chunk = scratch;
+        int pos = from;
+        while (pos < to) {
+            int lim = Math.min(to - pos, size);
+            copy(text, pos, pos + lim, chunk);
+            int end = feed(downstream, chunk, 0, lim);
+            pos += end;
+            if (end < lim) {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private static void copy(CharSequence text, int from, int to, char[] chunk) {
+        switch (text) {
+            case String string -> string.getChars(from, to, chunk, 0);
+            case StringBuilder stringBuilder -> stringBuilder.getChars(from, to, chunk, 0);
+            case StringBuffer stringBuffer -> stringBuffer.getChars(from, to, chunk, 0);
+            case CharBuffer charBuffer -> charBuffer.get(charBuffer.position() + from, chunk, 0, to - from);
+            default -> {
+                for (int i = from; i < to; i++) {
+                    chunk[i - from] = text.charAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Process a range of characters.
+     *
+     * @param downstream the downstream
+     * @param text       the text
+     * @param from       the index of the first character (inclusive)
+     * @param to         the index of the last character (exclusive)
+     * @return the index of the next character to process, which is less than {@code to} when the downstream declined
+     * @see #process(Predicate, CharSequence, int, int)
+     */
+    public int process(Predicate<T> downstream, char[] text, int from, int to) {
+        Objects.checkFromToIndex(from, to, text.length);
+        try {
+            if (!resume(downstream)) {
+                return from;
+            }
+            return feed(downstream, text, from, to);
+        } catch (LexException e) {
+            throw e.record();
+        }
+    }
+
+    /**
+     * Process the next character, taking up some units of the source.
+     *
+     * @param downstream the downstream
+     * @param ch         the character, or a supplementary code point when lexing code points
+     * @param width      the number of source units (such as bytes) of the character
+     * @return true if more tokens can be accepted
+     */
+    boolean process(Predicate<T> downstream, int ch, int width) {
+        limit = offset + width;
+        boolean more = dispatch(downstream, ch);
+        if (pending < 0) {
+            offset = limit;
+        }
+        return more;
+    }
+
+    /**
+     * Feed the next character of the source, after normalizing the line endings
+     * the same way as {@link com.github.ncoe.tchotchke.stream.LineEndingGatherer}.
+     * When lexing code points, a high surrogate is held until the next character,
+     * so that a surrogate pair is processed as one code point; all other characters go straight through.
+     *
+     * @param downstream the downstream
+     * @param ch         the character
+     * @param width      the number of source units (such as bytes) of the character
+     * @return true if more tokens can be accepted
+     */
+    boolean feed(Predicate<T> downstream, char ch, int width) {
+        if (high >= 0) {
+            char unit = (char) high;
+            high = -1;
+            if (Character.isLowSurrogate(ch)) {
+                return process(downstream, Character.toCodePoint(unit, ch), highWidth + width);
+            }
+            if (!process(downstream, unit, highWidth)) {
+                deferred = ch;
+                deferredWidth = width;
+                return false;
+            }
+        }
+
+        if (ch == Characters.CP_CR) {
+            cr = true;
+            return process(downstream, (char) Characters.CP_LF, width);
+        }
+        if (ch == Characters.CP_LF && cr) {
+            cr = false;
+            offset += width;
+            return true;
+        }
+
+        cr = false;
+        if (codePoints && Character.isHighSurrogate(ch)) {
+            high = ch;
+            highWidth = width;
+            return true;
+        }
+        return process(downstream, ch, width);
+    }
+
+    /**
+     * Feed a range of characters of the source, one unit each.
+     *
+     * @param downstream the downstream
+     * @param text       the text
+     * @param from       the index of the first character (inclusive)
+     * @param to         the index of the last character (exclusive)
+     * @return the index of the next character, which is less than {@code to} when the downstream declined
+     */
+    int feed(Predicate<T> downstream, char[] text, int from, int to) {
+        int pos = from;
+        while (pos < to) {
+            if (loops[state] && high < 0 && acceptLength < 0) {
+                int end = scan(text, pos, to);
+                if (end > pos) {
+                    shift(text, pos, end);
+                    pos = end;
+                    if (pos == to) {
+                        break;
                     }
-                    case SHIFT_REDUCE -> {
-                        builder.append(ch);
+                }
+            }
+            if (!feed(downstream, text[pos++], 1)) {
+                break;
+            }
+        }
+        return pos;
+    }
 
-                        String text = consume();
-                        Option<T> tokenOpt = factory.invoke(prev, text, false);
-                        yield consume(downstream, tokenOpt);
+    /**
+     * Find the end of the run of characters that the current state shifts onto itself.
+     * Carriage returns, a line feed right after one, and surrogates when lexing code points, end the run,
+     * so that they go through {@link #feed(Predicate, char, int)}.
+     * When the characters of the run make up a few ranges, and the Vector API is available,
+     * they are compared with vectors.
+     *
+     * @param text the text
+     * @param from the index of the first character (inclusive)
+     * @param to   the index of the last character (exclusive)
+     * @return the index after the run
+     */
+    private int scan(char[] text, int from, int to) {
+        int loop = LexTable.cell(LexAction.SHIFT, state, 0);
+        int pos = from;
+        if (cr && text[pos] == Characters.CP_LF) {
+            return pos;
+        }
+        if (runs != null && runs[state] != null) {
+            return VectorScanner.scan(text, from, to, runs[state], codePoints);
+        }
+        while (pos < to) {
+            char ch = text[pos];
+            //one unsigned comparison for surrogates, none of which end the run unless lexing code points
+            if (ch == Characters.CP_CR || (char) (ch - Character.MIN_SURROGATE) < surrogates) {
+                break;
+            }
+            if (LexTable.clearToken(table.transition(state, ch)) != loop) {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Append a run of characters.
+     *
+     * @param text the text
+     * @param from the index of the first character (inclusive)
+     * @param to   the index of the last character (exclusive)
+     */
+    private void shift(char[] text, int from, int to) {
+        if (builder.isEmpty()) {
+            span.start = offset;
+            span.position = position;
+        }
+        builder.append(text, from, to - from);
+        if (counters != null) {
+            counters.run(state, to - from);
+        }
+        offset += to - from;
+        limit = offset;
+        span.end = limit;
+        cr = false;
+
+        //only runs of states that shift line feeds onto themselves can span lines
+        int loop = LexTable.cell(LexAction.SHIFT, state, 0);
+        if (LexTable.clearToken(table.transition(state, Characters.CP_LF)) != loop) {
+            position += to - from;
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            advance(text[i]);
+        }
+    }
+
+    /**
+     * Move the position past a character, which starts a new line if it is a line feed.
+     *
+     * @param ch the character
+     */
+    private void advance(int ch) {
+        if (ch == Characters.CP_LF) {
+            position = TokenSpan.position(TokenSpan.line(position) + 1, 1);
+        } else {
+            position++;
+        }
+    }
+
+    /**
+     * Process a high surrogate held at the end of the source,
+     * and take a token that went past its longest match back to it.
+     *
+     * @param downstream the downstream
+     * @return true if more tokens can be accepted
+     */
+    boolean flush(Predicate<T> downstream) {
+        if (high >= 0) {
+            char unit = (char) high;
+            high = -1;
+            if (!process(downstream, unit, highWidth)) {
+                return false;
+            }
+        }
+        while (acceptLength >= 0) {
+            if (!backtrack(downstream, -1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finish processing the characters interrupted by the downstream declining more tokens.
+     *
+     * @param downstream the downstream
+     * @return true if more tokens can be accepted
+     */
+    boolean resume(Predicate<T> downstream) {
+        if (pending >= 0) {
+            int ch = pending;
+            pending = -1;
+            boolean more = dispatch(downstream, ch);
+            if (pending < 0) {
+                offset = limit;
+            }
+            if (!more) {
+                return false;
+            }
+        }
+        if (!replay(downstream)) {
+            return false;
+        }
+        if (deferred >= 0) {
+            char ch = (char) deferred;
+            deferred = -1;
+            if (deferredWidth < 0) {
+                return process(downstream, ch, -deferredWidth);
+            }
+            return feed(downstream, ch, deferredWidth);
+        }
+        return true;
+    }
+
+    /**
+     * Apply the transitions for a character, until it is consumed or the downstream declines more tokens.
+     * Deferrals are resolved by the table, so only reductions process the same character again.
+     *
+     * @param downstream the downstream
+     * @param ch         the character
+     * @return true if more tokens can be accepted
+     */
+    private boolean dispatch(Predicate<T> downstream, int ch) {
+        int reductions = 0;
+        while (true) {
+            int cell = table.transition(state, ch);
+            if (cell == LexTable.NONE) {
+                throw new LexException("Unhandled character %c in state %s", ch, states.get(state));
+            }
+
+            int token = LexTable.token(cell);
+            LexAction action = LexTable.action(cell);
+            if (counters != null) {
+                counters.transition(state, action);
+            }
+            int from = state;
+            state = LexTable.next(cell);
+            switch (action) {
+                case DEFER -> throw new LexException("Unresolved deferral in state %s", states.get(token));
+                case REDUCE -> {
+                    if (acceptLength >= 0) {
+                        return backtrack(downstream, ch);
+                    }
+                    if (!reduce(downstream, token)) {
+                        pending = ch;
+                        return false;
+                    }
+                    if (++reductions > states.size()) {
+                        throw new LexException("Endless reductions of %c in state %s", ch, states.get(state));
                     }
-                    case SKIP -> true;
-                    case SKIP_REDUCE -> {
-                        String text = consume();
-                        Option<T> tokenOpt = factory.invoke(prev, text, false);
-                        yield consume(downstream, tokenOpt);
+                    mark(offset);
+                }
+                case SHIFT -> {
+                    if (accepting != null) {
+                        track(from, ch);
                     }
-                };
+                    append(ch);
+                    advance(ch);
+                    return true;
+                }
+                case SHIFT_REDUCE -> {
+                    append(ch);
+                    boolean more = reduce(downstream, token);
+                    advance(ch);
+                    mark(limit);
+                    return more;
+                }
+                case SKIP -> {
+                    advance(ch);
+                    return true;
+                }
+                case SKIP_REDUCE -> {
+                    boolean more = reduce(downstream, token);
+                    advance(ch);
+                    mark(limit);
+                    return more;
+                }
             }
         }
+    }
 
-        throw new LexException("Unhandled character %c in state %s", ch, state);
+    /**
+     * Keep track of the longest match of the token, before shifting a character.
+     * Once the token leaves the last accepting state it went through, the characters after it are recorded,
+     * until it reaches another accepting state, or cannot go on.
+     *
+     * @param from the state shifting the character
+     * @param ch   the character
+     */
+    private void track(int from, int ch) {
+        if (accepting[state]) {
+            acceptLength = -1;
+            return;
+        }
+        if (acceptLength < 0) {
+            if (!accepting[from]) {
+                return;
+            }
+            acceptLength = builder.length();
+            acceptState = from;
+            acceptEnd = span.end;
+            acceptPosition = position;
+            overCount = 0;
+        }
+        if (overChars == null || overCount == overChars.length) {
+            int capacity = overChars == null ? 16 : 2 * overCount;
+            overChars = overChars == null ? new int[capacity] : Arrays.copyOf(overChars, capacity);
+            overStarts = overStarts == null ? new long[capacity] : Arrays.copyOf(overStarts, capacity);
+        }
+        overChars[overCount] = ch;
+        overStarts[overCount] = offset;
+        overCount++;
+    }
+
+    /**
+     * Build the token of the longest match, after the token went past it and could not go on,
+     * then process the characters after it again, from the initial state.
+     *
+     * @param downstream the downstream
+     * @param ch         the character the token could not go on with, or -1 at the end of the source
+     * @return true if more tokens can be accepted
+     */
+    private boolean backtrack(Predicate<T> downstream, int ch) {
+        if (ch >= 0) {
+            push(ch, offset, limit);
+        }
+        long end = offset;
+        for (int i = overCount - 1; i >= 0; i--) {
+            push(overChars[i], overStarts[i], end);
+            end = overStarts[i];
+        }
+        //the characters up to here were looked at, so no boundary before them is a safe place to start from
+        horizon = Math.max(horizon, limit);
+
+        builder.setLength(acceptLength);
+        span.end = acceptEnd;
+        position = acceptPosition;
+        offset = end;
+        state = init;
+        boolean more = reduce(downstream, acceptState);
+        return more && (replaying || replay(downstream));
+    }
+
+    private void push(int ch, long start, long end) {
+        if (replayChars == null || replayCount == replayChars.length) {
+            int capacity = replayChars == null ? 16 : 2 * replayCount;
+            replayChars = replayChars == null ? new int[capacity] : Arrays.copyOf(replayChars, capacity);
+            replayStarts = replayStarts == null ? new long[capacity] : Arrays.copyOf(replayStarts, capacity);
+            replayEnds = replayEnds == null ? new long[capacity] : Arrays.copyOf(replayEnds, capacity);
+        }
+        replayChars[replayCount] = ch;
+        replayStarts[replayCount] = start;
+        replayEnds[replayCount] = end;
+        replayCount++;
+    }
+
+    /**
+     * Process the characters after a longest match again, until there are none left
+     * or the downstream declines more tokens.
+     *
+     * @param downstream the downstream
+     * @return true if more tokens can be accepted
+     */
+    private boolean replay(Predicate<T> downstream) {
+        replaying = true;
+        try {
+            while (replayCount > 0) {
+                replayCount--;
+                offset = replayStarts[replayCount];
+                limit = replayEnds[replayCount];
+                boolean more = dispatch(downstream, replayChars[replayCount]);
+                if (pending < 0) {
+                    offset = limit;
+                }
+                if (!more) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            replaying = false;
+        }
+    }
+
+    private void mark(long at) {
+        if (boundary != null && at >= horizon) {
+            boundary.mark(at, state, position);
+        }
+    }
+
+    private void append(int ch) {
+        if (builder.isEmpty()) {
+            span.start = offset;
+            span.position = position;
+        }
+        if (ch > Character.MAX_VALUE) {
+            builder.appendCodePoint(ch);
+        } else {
+            builder.append((char) ch);
+        }
+        span.end = limit;
     }
 
     /**
@@ -141,11 +1220,11 @@ public final class LexStateMachine<S, T> {
      * @return the builder
      */
     public static <S> Builder<S, String> builder(S init) {
-        return builder(init, (_, text, end) -> {
-            if (end && text.isEmpty()) {
+        return spanBuilder(init, (_, span, end) -> {
+            if (end && span.isEmpty()) {
                 return Option.none();
             }
-            return Option.some(text);
+            return Option.some(span.toString());
         });
     }
 
@@ -159,6 +1238,20 @@ public final class LexStateMachine<S, T> {
      * @return the builder
      */
     public static <S, T> Builder<S, T> builder(S init, TokenFactory<S, T> factory) {
+        Assertion.notNull(factory, "expected a token factory");
+        return spanBuilder(init, (state, span, end) -> factory.invoke(state, span.toString(), end));
+    }
+
+    /**
+     * Start building a state machine, with a factory that only materializes the text when needed.
+     *
+     * @param init    the initial state name
+     * @param factory the token factory
+     * @param <S>     the type of state
+     * @param <T>     the type of token
+     * @return the builder
+     */
+    public static <S, T> Builder<S, T> spanBuilder(S init, TokenSpanFactory<S, T> factory) {
         Assertion.notNull(init, "expected an initial state");
         Assertion.notNull(factory, "expected a token factory");
         return new Builder<>(init, factory);
@@ -172,15 +1265,145 @@ public final class LexStateMachine<S, T> {
      */
     public static final class Builder<S, T> {
         private final Map<S, List<Entry<S>>> stateMap = new LinkedHashMap<>();
-        private final TokenFactory<S, T> factory;
+        private final Map<S, Map<String, T>> keywordMap = new HashMap<>();
+        private final TokenSpanFactory<S, T> factory;
         private final S init;
 
+        private LexMode mode = LexMode.INTERPRETED;
+        private CharacterPredicate resync;
+        private boolean codePoints;
+        private BiPredicate<? super S, ? super S> equivalence;
+        private Predicate<? super S> accepting;
+        private boolean profile;
+        private String name;
         private S current;
 
-        private Builder(S init, TokenFactory<S, T> factory) {
+        private Builder(S init, TokenSpanFactory<S, T> factory) {
             this.factory = factory;
             this.init = init;
             this.current = init;
+            this.name = init instanceof Enum<?> constant
+                ? constant.getDeclaringClass().getName()
+                : init.getClass().getName();
+        }
+
+        /**
+         * Set how the transitions are evaluated.
+         *
+         * @param mode the mode
+         * @return this
+         */
+        public Builder<S, T> mode(LexMode mode) {
+            Assertion.notNull(mode, "mode cannot be null");
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Set whether surrogate pairs are matched as a single code point.
+         * The predicates are then given supplementary code points too; those that are not
+         * {@link CodePointPredicate code point predicates} never match them.
+         * Characters outside of surrogate pairs are matched the same way either way.
+         *
+         * @param enabled true to match code points, false to match UTF-16 units
+         * @return this
+         */
+        public Builder<S, T> codePoints(boolean enabled) {
+            this.codePoints = enabled;
+            return this;
+        }
+
+        /**
+         * Merge the states that behave the same, so the tables are smaller.
+         * Two states are only merged when they have the same keywords, the function says that the token factory
+         * treats them the same, and they make the same transitions for every character, up to merged states.
+         * The token factory is then given the first of the merged states.
+         *
+         * @param equivalence whether the token factory treats two states the same, which must be an equivalence
+         * @return this
+         */
+        public Builder<S, T> minimize(BiPredicate<? super S, ? super S> equivalence) {
+            Assertion.notNull(equivalence, "equivalence cannot be null");
+            this.equivalence = equivalence;
+            return this;
+        }
+
+        /**
+         * Make tokens end at their longest match. When a token cannot go on after leaving the last state
+         * that accepts it, the token is built as it was in that state, and the characters after it are processed
+         * again from the initial state, instead of reducing the whole text.
+         * Merged states must agree on whether they accept.
+         *
+         * @param accepting whether a state ends a valid token
+         * @return this
+         */
+        Builder<S, T> backtrack(Predicate<? super S> accepting) {
+            this.accepting = accepting;
+            return this;
+        }
+
+        /**
+         * Set the name of the grammar, as recorded by the flight recorder events of the machine.
+         * By default, it is the name of the class of the initial state.
+         *
+         * @param name the name
+         * @return this
+         */
+        public Builder<S, T> name(String name) {
+            Assertion.notNull(name, "name cannot be null");
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Set whether the machine counts its transitions and tokens, as reported by {@link LexStateMachine#profile()}.
+         * Each duplicate of the machine keeps its own counters, which are added to the profile when it finishes a run.
+         * Without profiling, the machine does not count anything, but it still checks for counters on every transition,
+         * which is not free: lexing runs of identifiers with a compiled table measured about a tenth slower
+         * than without the checks.
+         *
+         * @param enabled true to count
+         * @return this
+         */
+        public Builder<S, T> profile(boolean enabled) {
+            this.profile = enabled;
+            return this;
+        }
+
+        /**
+         * Set the characters after which the input may be split, so the parts can be lexed in parallel.
+         * The initial state should be reached shortly after these characters, such as after a new line
+         * in a grammar of records that are each on their own line.
+         *
+         * @param predicate the resynchronization characters
+         * @return this
+         */
+        public Builder<S, T> resync(CharacterPredicate predicate) {
+            Assertion.notNull(predicate, "predicate cannot be null");
+            this.resync = predicate;
+            return this;
+        }
+
+        /**
+         * Set the keywords of a state. When the state reduces to one of the keywords, its token is emitted directly,
+         * without building the text or calling the token factory.
+         * The keywords are recognized with a minimal perfect hash over them.
+         *
+         * @param state    the state
+         * @param keywords the token of each keyword
+         * @return this
+         */
+        public Builder<S, T> keywords(S state, Map<String, ? extends T> keywords) {
+            Assertion.notNull(state, "state cannot be null");
+            Assertion.notNull(keywords, "keywords cannot be null");
+            Map<String, T> stateKeywords = keywordMap.computeIfAbsent(state, _ -> new HashMap<>());
+            for (Map.Entry<String, ? extends T> entry : keywords.entrySet()) {
+                Assertion.notNull(entry.getKey(), "keyword cannot be null");
+                Assertion.isFalse(entry.getKey().isEmpty(), "keyword cannot be empty");
+                Assertion.notNull(entry.getValue(), "token cannot be null");
+                stateKeywords.put(entry.getKey(), entry.getValue());
+            }
+            return this;
         }
 
         /**
@@ -314,6 +1537,24 @@ public final class LexStateMachine<S, T> {
             return build(false);
         }
 
+        /**
+         * List the states in the order of their ids.
+         * The constants of an enum are all listed, so that the id of a state is its ordinal.
+         *
+         * @return the states
+         */
+        private List<S> states() {
+            if (init instanceof Enum<?> constant) {
+                Class<?> type = constant.getDeclaringClass();
+                if (stateMap.keySet().stream().allMatch(type::isInstance)) {
+                    @SuppressWarnings("unchecked")
+                    S[] values = (S[]) type.getEnumConstants();
+                    return List.of(values);
+                }
+            }
+            return List.copyOf(stateMap.keySet());
+        }
+
         /**
          * Build the lex state machine.
          *
@@ -321,6 +1562,14 @@ public final class LexStateMachine<S, T> {
          * @return the state machine
          */
         public LexStateMachine<S, T> build(boolean check) {
+            try {
+                return assemble(check);
+            } catch (LexException e) {
+                throw e.record();
+            }
+        }
+
+        private LexStateMachine<S, T> assemble(boolean check) {
             if (!stateMap.containsKey(init)) {
                 throw new LexException("No transitions defined for state %s", init);
             }
@@ -334,11 +1583,179 @@ public final class LexStateMachine<S, T> {
             }
 
             if (check) {
+                TokenSpan empty = new TokenSpan(new StringBuilder());
                 for (S state : stateMap.keySet()) {
-                    factory.invoke(state, "", false);
+                    factory.invoke(state, empty, false);
                 }
             }
-            return new LexStateMachine<>(stateMap, factory, init);
+
+            for (S state : keywordMap.keySet()) {
+                if (!stateMap.containsKey(state)) {
+                    throw new LexException("No transitions defined for state %s", state);
+                }
+            }
+
+            List<S> states = states();
+            if (states.size() > LexTable.MAX_STATES) {
+                throw new LexException("Too many states %d, at most %d are supported", states.size(), LexTable.MAX_STATES);
+            }
+            Map<S, Integer> ids = new HashMap<>();
+            for (S state : states) {
+                ids.put(state, ids.size());
+            }
+
+            boolean defers = false;
+            Map<CharacterPredicate, CharacterPredicate> adapted = new IdentityHashMap<>();
+            CharacterPredicate[][] predicates = new CharacterPredicate[states.size()][];
+            int[][] cells = new int[states.size()][];
+            for (S state : states) {
+                List<Entry<S>> entryList = stateMap.getOrDefault(state, List.of());
+                int id = ids.get(state);
+                predicates[id] = new CharacterPredicate[entryList.size()];
+                cells[id] = new int[entryList.size()];
+                for (int i = 0; i < entryList.size(); i++) {
+                    Entry<S> entry = entryList.get(i);
+                    predicates[id][i] = codePoints
+                        ? adapted.computeIfAbsent(entry.predicate, CodePointPredicate::from)
+                        : entry.predicate;
+                    cells[id][i] = LexTable.cell(entry.action, ids.get(entry.next), id);
+                    defers |= entry.action == LexAction.DEFER;
+                }
+            }
+
+            //compiling follows the deferrals of each class, which rejects those that loop
+            CompiledTable compiled = mode == LexMode.INTERPRETED && equivalence == null
+                ? null
+                : CompiledTable.compile(predicates, cells, codePoints);
+            if (compiled == null && defers) {
+                InterpretedTable.checkDeferrals(predicates, cells, codePoints);
+            }
+            int[] blocks = new int[states.size()];
+            Arrays.setAll(blocks, id -> id);
+            if (equivalence != null) {
+                blocks = minimize(states, compiled);
+                int[] kept = new int[Arrays.stream(blocks).max().orElse(-1) + 1];
+                List<S> merged = new ArrayList<>();
+                for (int id = 0; id < blocks.length; id++) {
+                    if (blocks[id] == merged.size()) {
+                        kept[merged.size()] = id;
+                        merged.add(states.get(id));
+                    }
+                }
+
+                CharacterPredicate[][] mergedPredicates = new CharacterPredicate[kept.length][];
+                int[][] mergedCells = new int[kept.length][];
+                for (int id = 0; id < kept.length; id++) {
+                    mergedPredicates[id] = predicates[kept[id]];
+                    mergedCells[id] = new int[cells[kept[id]].length];
+                    for (int i = 0; i < mergedCells[id].length; i++) {
+                        mergedCells[id][i] = LexTable.renumber(cells[kept[id]][i], blocks);
+                    }
+                }
+                compiled = compiled.merge(kept, blocks);
+                states = List.copyOf(merged);
+                predicates = mergedPredicates;
+                cells = mergedCells;
+            }
+
+            boolean[] loops = new boolean[states.size()];
+            for (int id = 0; id < states.size(); id++) {
+                for (int cell : cells[id]) {
+                    loops[id] |= LexTable.action(cell) == LexAction.SHIFT && LexTable.next(cell) == id;
+                }
+            }
+
+            LexTable table = switch (mode) {
+                case INTERPRETED -> new InterpretedTable(predicates, cells);
+                case COMPILED -> compiled;
+                case GENERATED -> GeneratedTable.generate(compiled, states.size());
+            };
+            KeywordTable<T>[] keywords = null;
+            for (Map.Entry<S, Map<String, T>> entry : keywordMap.entrySet()) {
+                int id = blocks[ids.get(entry.getKey())];
+                if (!entry.getValue().isEmpty() && (keywords == null || keywords[id] == null)) {
+                    if (keywords == null) {
+                        @SuppressWarnings("unchecked")
+                        KeywordTable<T>[] tables = new KeywordTable[states.size()];
+                        keywords = tables;
+                    }
+                    keywords[id] = KeywordTable.build(entry.getValue());
+                }
+            }
+
+            boolean[] accepts = null;
+            if (accepting != null) {
+                accepts = new boolean[states.size()];
+                for (int id = 0; id < states.size(); id++) {
+                    accepts[id] = accepting.test(states.get(id));
+                }
+            }
+
+            char[][] runs = VectorSupport.ENABLED ? VectorSupport.ranges(table, loops) : null;
+            int start = blocks[ids.get(init)];
+            return new LexStateMachine<>(
+                table,
+                compiled,
+                loops,
+                runs,
+                keywords,
+                accepts,
+                states,
+                factory,
+                resync,
+                codePoints,
+                start,
+                name,
+                profile ? new LexCounters.Family(states.size()) : null
+            );
+        }
+
+        /**
+         * Partition the states into blocks that behave the same, by refining the blocks of states that the token
+         * factory treats the same, until every state of a block makes the same transitions into the same blocks.
+         *
+         * @param states   the states
+         * @param compiled the compiled table of the states
+         * @return the block of each state, numbered in order of their first state
+         */
+        private int[] minimize(List<S> states, CompiledTable compiled) {
+            int[] blocks = new int[states.size()];
+            List<S> firsts = new ArrayList<>();
+            for (int id = 0; id < states.size(); id++) {
+                S state = states.get(id);
+                int block = 0;
+                while (block < firsts.size() && !same(firsts.get(block), state)) {
+                    block++;
+                }
+                if (block == firsts.size()) {
+                    firsts.add(state);
+                }
+                blocks[id] = block;
+            }
+
+            int count = firsts.size();
+            int classCount = compiled.classCount();
+            while (true) {
+                Map<Signature, Integer> refined = new HashMap<>();
+                int[] next = new int[states.size()];
+                for (int id = 0; id < states.size(); id++) {
+                    int[] signature = new int[1 + classCount];
+                    signature[0] = blocks[id];
+                    for (int cls = 0; cls < classCount; cls++) {
+                        signature[1 + cls] = LexTable.renumber(compiled.cell(id, cls), blocks);
+                    }
+                    next[id] = refined.computeIfAbsent(new Signature(signature), _ -> refined.size());
+                }
+                blocks = next;
+                if (refined.size() == count) {
+                    return blocks;
+                }
+                count = refined.size();
+            }
+        }
+
+        private boolean same(S lhs, S rhs) {
+            return equivalence.test(lhs, rhs) && Objects.equals(keywordMap.get(lhs), keywordMap.get(rhs));
         }
     }
 }
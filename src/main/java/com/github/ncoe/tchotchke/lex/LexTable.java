@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+/**
+ * Lex Table
+ *
+ * <p>States are identified by their index, and a transition is packed into a single {@code int} cell
+ * holding the action, the next state, and the state naming the token when the action builds one.
+ * The transitions returned by a table never defer; deferrals are followed while building or looking up the table.
+ */
+interface LexTable {
+    /**
+     * The cell for a character without a transition.
+     */
+    int NONE = -1;
+
+    /**
+     * The most states a table can hold.
+     */
+    int MAX_STATES = 1 << 14;
+
+    /**
+     * Find the transition for a character.
+     *
+     * @param state the state id
+     * @param ch    the character, or a supplementary code point when lexing code points
+     * @return the packed transition, or {@link #NONE}
+     */
+    int transition(int state, int ch);
+
+    /**
+     * Pack a transition into a cell.
+     *
+     * @param action the action
+     * @param next   the next state id
+     * @param token  the state id naming the token
+     * @return the cell
+     */
+    static int cell(LexAction action, int next, int token) {
+        return token << 17 | next << 3 | action.ordinal();
+    }
+
+    /**
+     * Check if a cell defers to the next state.
+     *
+     * @param cell the cell
+     * @return true for a deferral
+     */
+    static boolean defers(int cell) {
+        return cell != NONE && (cell & 7) == LexAction.DEFER.ordinal();
+    }
+
+    /**
+     * Unpack the action of a cell.
+     *
+     * @param cell the cell
+     * @return the action
+     */
+    static LexAction action(int cell) {
+        return Actions.VALUES[cell & 7];
+    }
+
+    /**
+     * Unpack the next state of a cell.
+     *
+     * @param cell the cell
+     * @return the next state id
+     */
+    static int next(int cell) {
+        return cell >>> 3 & MAX_STATES - 1;
+    }
+
+    /**
+     * Clear the state naming the token of a cell, to compare transitions regardless of it.
+     *
+     * @param cell the cell
+     * @return the cell with a token state of zero
+     */
+    static int clearToken(int cell) {
+        return cell & (1 << 17) - 1;
+    }
+
+    /**
+     * Unpack the state naming the token of a cell.
+     *
+     * @param cell the cell
+     * @return the state id
+     */
+    static int token(int cell) {
+        return cell >>> 17;
+    }
+
+    /**
+     * Renumber the states of a cell.
+     *
+     * @param cell the cell
+     * @param ids  the new id of each state
+     * @return the cell with the new ids, or {@link #NONE}
+     */
+    static int renumber(int cell, int[] ids) {
+        if (cell == NONE) {
+            return NONE;
+        }
+        return cell(action(cell), ids[next(cell)], ids[token(cell)]);
+    }
+
+    /**
+     * Cached actions, so unpacking does not clone the values.
+     */
+    final class Actions {
+        private static final LexAction[] VALUES = LexAction.values();
+
+        private Actions() {
+            //empty
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.function.CharacterPredicate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Lexes text in parallel, by splitting it after resynchronization characters.
+ *
+ * <p>Every part after the first is lexed from the initial state, while the points between its first tokens are kept.
+ * The parts are then joined in order: the machine of the previous part carries on into the next part,
+ * until it reaches a point where the machine of the next part was in the same state.
+ * From there on both machines behave the same, so the rest of the tokens of the next part are used as they are.
+ * When no such point is found, the previous machine lexes the whole part itself.
+ *
+ * <p>Starting from the initial state in the middle of a token, such as inside a string, a part may reach
+ * a character that the initial state has no transition for. The part then stops with the points it kept so far.
+ * Reaching one of them would lead the previous machine to the same error, so the error is only thrown then;
+ * otherwise the previous machine lexes the part, as when no point is found.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+final class ParallelLexer<S, T> {
+    /**
+     * The smallest part worth lexing on its own.
+     */
+    static final int MIN_PART = 1 << 16;
+
+    /**
+     * The number of points kept at the start of each part.
+     */
+    private static final int WINDOW = 64;
+
+    private final LexStateMachine<S, T> stateMachine;
+    private final CharSequence text;
+
+    /**
+     * The result of lexing a part.
+     */
+    private final class Part implements LexStateMachine.Boundary {
+        private final int from;
+        private final int to;
+        private final long position;
+        private final LexStateMachine<S, T> machine = stateMachine.duplicate();
+        private final List<T> tokens = new ArrayList<>();
+
+        private final long[] offsets = new long[WINDOW];
+        private final int[] states = new int[WINDOW];
+        private final int[] counts = new int[WINDOW];
+        private int size;
+        private LexException error;
+
+        private Part(int from, int to, long position) {
+            this.from = from;
+            this.to = to;
+            this.position = position;
+        }
+
+        private Part lex() {
+            if (from == 0) {
+                machine.lex(tokens::add, text, from, to);
+                return this;
+            }
+
+            machine.seek(from, machine.state(), text.charAt(from - 1) == Characters.CP_CR, position);
+            mark(from, machine.state(), position);
+            machine.boundary = this;
+            try {
+                machine.lex(tokens::add, text, from, to);
+            } catch (LexException e) {
+                //the part was started inside a token that the initial state cannot handle, which may not matter
+                error = e;
+            } finally {
+                machine.boundary = null;
+            }
+            return this;
+        }
+
+        @Override
+        public void mark(long offset, int state, long position) {
+            if (size < WINDOW) {
+                offsets[size] = offset;
+                states[size] = state;
+                counts[size] = tokens.size();
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Carries the previous machine into a part, looking for a point shared with the machine of the part.
+     */
+    private final class Join implements LexStateMachine.Boundary {
+        private final Part part;
+        private final List<T> tokens = new ArrayList<>();
+
+        private int index;
+        private int mine = -1;
+        private int theirs = -1;
+
+        private Join(Part part) {
+            this.part = part;
+        }
+
+        @Override
+        public void mark(long offset, int state, long position) {
+            if (mine >= 0) {
+                return;
+            }
+            while (index < part.size && part.offsets[index] < offset) {
+                index++;
+            }
+            for (int i = index; i < part.size && part.offsets[i] == offset; i++) {
+                if (part.states[i] == state) {
+                    mine = tokens.size();
+                    theirs = part.counts[i];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param stateMachine the state machine
+     * @param text         the text
+     */
+    ParallelLexer(LexStateMachine<S, T> stateMachine, CharSequence text) {
+        this.stateMachine = stateMachine;
+        this.text = text;
+    }
+
+    /**
+     * Split the text into tokens.
+     *
+     * @param parallelism the number of parts to aim for
+     * @return the tokens, in order
+     */
+    List<T> lex(int parallelism) {
+        int[] bounds = split(parallelism);
+        long[] positions = positions(bounds);
+        List<Part> parts = IntStream
+            .range(0, bounds.length - 1)
+            .parallel()
+            .mapToObj(i -> new Part(bounds[i], bounds[i + 1], positions[i]).lex())
+            .toList();
+
+        Part first = parts.getFirst();
+        List<T> tokenList = new ArrayList<>(first.tokens);
+        LexStateMachine<S, T> machine = first.machine;
+        for (Part part : parts.subList(1, parts.size())) {
+            Join join = new Join(part);
+            machine.boundary = join;
+            for (int i = part.from; i < part.to && join.mine < 0; i++) {
+                machine.feed(join.tokens::add, text.charAt(i), 1);
+            }
+            machine.boundary = null;
+
+            if (join.mine < 0) {
+                tokenList.addAll(join.tokens);
+            } else if (part.error != null) {
+                //from the shared point on, the previous machine would fail the same way
+                throw part.error;
+            } else {
+                tokenList.addAll(join.tokens.subList(0, join.mine));
+                tokenList.addAll(part.tokens.subList(join.theirs, part.tokens.size()));
+                machine = part.machine;
+            }
+        }
+        machine.flush(tokenList::add);
+        machine.consume(tokenList::add);
+        return tokenList;
+    }
+
+    /**
+     * Find the line and column at the start of each part.
+     * The lines of the parts are counted in parallel, then added up in order.
+     *
+     * @param bounds the bounds of the parts
+     * @return the packed position of the first character of each part
+     */
+    private long[] positions(int[] bounds) {
+        long[] counts = IntStream
+            .range(0, bounds.length - 1)
+            .parallel()
+            .mapToLong(i -> count(bounds[i], bounds[i + 1]))
+            .toArray();
+
+        long[] positions = new long[counts.length];
+        long position = TokenSpan.position(1, 1);
+        for (int i = 0; i < counts.length; i++) {
+            positions[i] = position;
+            int lines = TokenSpan.line(counts[i]);
+            int columns = TokenSpan.column(counts[i]);
+            position = lines == 0
+                ? position + columns
+                : TokenSpan.position(TokenSpan.line(position) + lines, 1 + columns);
+        }
+        return positions;
+    }
+
+    /**
+     * Count the line breaks of a part, the same way as the state machine.
+     *
+     * @param from the index of the first character (inclusive)
+     * @param to   the index of the last character (exclusive)
+     * @return the number of line breaks, and the number of characters after the last one, packed as a position
+     */
+    private long count(int from, int to) {
+        boolean codePoints = stateMachine.codePoints();
+        boolean cr = from > 0 && text.charAt(from - 1) == Characters.CP_CR;
+        int lines = 0;
+        int columns = 0;
+        for (int i = from; i < to; i++) {
+            char ch = text.charAt(i);
+            if (ch == Characters.CP_LF && cr) {
+                cr = false;
+                continue;
+            }
+
+            cr = ch == Characters.CP_CR;
+            if (cr || ch == Characters.CP_LF) {
+                lines++;
+                columns = 0;
+            } else if (!codePoints
+                || !Character.isLowSurrogate(ch)
+                || i == from
+                || !Character.isHighSurrogate(text.charAt(i - 1))) {
+                columns++;
+            }
+        }
+        return TokenSpan.position(lines, columns);
+    }
+
+    /**
+     * Choose where to split the text, just after a resynchronization character near each even split.
+     *
+     * @param parallelism the number of parts to aim for
+     * @return the bounds of the parts
+     */
+    private int[] split(int parallelism) {
+        CharacterPredicate resync = stateMachine.resync();
+        int length = text.length();
+
+        List<Integer> boundList = new ArrayList<>();
+        boundList.add(0);
+        for (int i = 1; i < parallelism && resync != null; i++) {
+            int pos = Math.max((int) ((long) length * i / parallelism), boundList.getLast());
+            while (pos < length && !resync.test(text.charAt(pos))) {
+                pos++;
+            }
+            if (pos + 1 < length && pos + 1 > boundList.getLast()) {
+                boundList.add(pos + 1);
+            }
+        }
+        boundList.add(length);
+        return boundList.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
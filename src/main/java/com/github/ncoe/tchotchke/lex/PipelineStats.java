@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How busy the stages of a pipelined lexer are, updated as it runs.
+ *
+ * <p>One stage reads and decodes the source into a ring of buffers, while the other lexes the filled buffers.
+ * When the lexer spends much of its time waiting for a filled buffer, reading is the bottleneck;
+ * when the reader spends much of its time waiting for a free buffer, lexing is.
+ */
+public final class PipelineStats {
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong readerWaitNanos = new AtomicLong();
+    private final AtomicLong lexerWaitNanos = new AtomicLong();
+    private final AtomicInteger filled = new AtomicInteger();
+    private volatile int capacity;
+
+    /**
+     * Get the number of buffers read so far.
+     *
+     * @return the number of buffers
+     */
+    public long chunks() {
+        return chunks.get();
+    }
+
+    /**
+     * Get the time the reader spent reading.
+     *
+     * @return the time in nanoseconds
+     */
+    public long readNanos() {
+        return readNanos.get();
+    }
+
+    /**
+     * Get the time the reader spent waiting for the lexer to free a buffer.
+     *
+     * @return the time in nanoseconds
+     */
+    public long readerWaitNanos() {
+        return readerWaitNanos.get();
+    }
+
+    /**
+     * Get the time the lexer spent waiting for the reader to fill a buffer.
+     *
+     * @return the time in nanoseconds
+     */
+    public long lexerWaitNanos() {
+        return lexerWaitNanos.get();
+    }
+
+    /**
+     * Get the number of filled buffers waiting to be lexed.
+     *
+     * @return the number of buffers
+     */
+    public int filled() {
+        return filled.get();
+    }
+
+    /**
+     * Get the number of buffers in the ring.
+     *
+     * @return the number of buffers
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    void capacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void read(long nanos) {
+        chunks.incrementAndGet();
+        readNanos.addAndGet(nanos);
+        filled.incrementAndGet();
+    }
+
+    void readerWait(long nanos) {
+        readerWaitNanos.addAndGet(nanos);
+    }
+
+    void lexerWait(long nanos) {
+        lexerWaitNanos.addAndGet(nanos);
+        filled.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineStats{chunks=%d, readNanos=%d, readerWaitNanos=%d, lexerWaitNanos=%d, filled=%d/%d}".formatted(
+            chunks(),
+            readNanos(),
+            readerWaitNanos(),
+            lexerWaitNanos(),
+            filled(),
+            capacity()
+        );
+    }
+}
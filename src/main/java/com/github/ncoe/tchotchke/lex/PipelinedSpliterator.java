@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Predicate;
+
+/**
+ * Token spliterator reading the characters from a reader on a virtual thread, ahead of the lexer.
+ * The buffers go around a ring: the reader fills the free ones, and the lexer frees them once lexed.
+ * The thread starts with the first token asked for, so a stream that is never run reads nothing.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+final class PipelinedSpliterator<S, T> extends TokenSpliterator<S, T> {
+    /**
+     * The number of buffers in the ring.
+     */
+    static final int BUFFERS = 4;
+
+    /**
+     * The number of characters of each buffer.
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * A buffer of the ring, with what was read into it.
+     */
+    private static final class Chunk {
+        private final char[] data;
+        private int length;
+        private IOException error;
+
+        private Chunk(char[] data) {
+            this.data = data;
+        }
+    }
+
+    private final Reader reader;
+    private final PipelineStats stats;
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(BUFFERS);
+    private Thread thread;
+    private Chunk current;
+    private int pos;
+    private boolean eof;
+
+    /**
+     * Constructor
+     *
+     * @param machine the state machine
+     * @param reader  the reader
+     * @param stats   the statistics to update
+     */
+    PipelinedSpliterator(LexStateMachine<S, T> machine, Reader reader, PipelineStats stats) {
+        super(machine);
+        this.reader = reader;
+        this.stats = stats;
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Chunk(new char[BUFFER_SIZE]));
+        }
+        stats.capacity(BUFFERS);
+    }
+
+    /**
+     * Fill the free buffers, until the end of the reader.
+     */
+    private void read() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Chunk chunk = free.take();
+                long taken = System.nanoTime();
+                stats.readerWait(taken - start);
+
+                try {
+                    chunk.length = reader.read(chunk.data);
+                } catch (IOException e) {
+                    chunk.length = -1;
+                    chunk.error = e;
+                }
+                stats.read(System.nanoTime() - taken);
+                full.put(chunk);
+                if (chunk.length < 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            //the stream was closed
+        }
+    }
+
+    /**
+     * Stop reading ahead, and close the reader.
+     * An interrupt does not unblock a read in progress, so closing the reader is what ends it.
+     *
+     * @throws IOException if the reader cannot be closed
+     */
+    void close() throws IOException {
+        eof = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        reader.close();
+    }
+
+    @Override
+    protected boolean feed(Predicate<T> sink) {
+        if (eof) {
+            return false;
+        }
+        if (thread == null) {
+            thread = Thread.ofVirtual().name("tchotchke-lex-reader").start(this::read);
+        }
+        if (current == null || pos == current.length) {
+            if (current != null) {
+                free.add(current);
+            }
+            long start = System.nanoTime();
+            try {
+                current = full.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for the reader"));
+            }
+            stats.lexerWait(System.nanoTime() - start);
+            pos = 0;
+
+            if (current.error != null) {
+                eof = true;
+                throw new UncheckedIOException(current.error);
+            }
+            if (current.length < 0) {
+                eof = true;
+                return false;
+            }
+        }
+
+        pos = accept(sink, current.data, pos, current.length);
+        return true;
+    }
+}
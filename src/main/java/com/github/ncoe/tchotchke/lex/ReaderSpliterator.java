@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.function.Predicate;
+
+/**
+ * Token spliterator reading the characters from a reader, a buffer at a time.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+final class ReaderSpliterator<S, T> extends TokenSpliterator<S, T> {
+    /**
+     * The number of characters read at a time.
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int pos;
+    private int lim;
+
+    /**
+     * Constructor
+     *
+     * @param machine the state machine
+     * @param reader  the reader
+     */
+    ReaderSpliterator(LexStateMachine<S, T> machine, Reader reader) {
+        super(machine);
+        this.reader = reader;
+    }
+
+    @Override
+    protected boolean feed(Predicate<T> sink) {
+        if (pos == lim) {
+            try {
+                lim = reader.read(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pos = 0;
+            if (lim < 0) {
+                lim = 0;
+                return false;
+            }
+        }
+
+        pos = accept(sink, buffer, pos, lim);
+        return true;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Parser of the regular expressions of {@link LexRules}, into a tree of character sets.
+ */
+final class Regex {
+    /**
+     * The most repetitions of a bounded quantifier, which copies its operand.
+     */
+    static final int MAX_REPEAT = 1000;
+
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+
+    private static final int[] DIGIT = {'0', '9'};
+    private static final int[] SPACE = {'\t', '\r', ' ', ' '};
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+
+    /**
+     * Everything but the line terminators, as {@code .} matches in {@link java.util.regex.Pattern} by default.
+     */
+    private static final int[] DOT = negate(new int[]{'\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029});
+
+    /**
+     * A node of the tree.
+     */
+    sealed interface Node {
+        //empty
+    }
+
+    /**
+     * Matches one character of a set.
+     *
+     * @param ranges the sorted, disjoint, inclusive ranges of the set, as pairs
+     */
+    record Chars(int[] ranges) implements Node {
+        //empty
+    }
+
+    /**
+     * Matches each node in turn.
+     *
+     * @param nodes the nodes
+     */
+    record Concat(List<Node> nodes) implements Node {
+        //empty
+    }
+
+    /**
+     * Matches any of the nodes.
+     *
+     * @param nodes the nodes
+     */
+    record Alt(List<Node> nodes) implements Node {
+        //empty
+    }
+
+    /**
+     * Matches a node repeatedly.
+     *
+     * @param node the node
+     * @param min  the fewest repetitions
+     * @param max  the most repetitions, or -1 for no limit
+     */
+    record Repeat(Node node, int min, int max) implements Node {
+        //empty
+    }
+
+    private final String pattern;
+    private int pos;
+
+    private Regex(String pattern) {
+        this.pattern = pattern;
+    }
+
+    /**
+     * Parse a regular expression.
+     *
+     * @param pattern the regular expression
+     * @return the tree
+     */
+    static Node parse(String pattern) {
+        Regex regex = new Regex(pattern);
+        Node node = regex.alternation();
+        if (regex.pos < pattern.length()) {
+            throw regex.error("unexpected " + pattern.charAt(regex.pos));
+        }
+        return node;
+    }
+
+    /**
+     * Check whether a tree matches the empty string.
+     *
+     * @param node the tree
+     * @return true if it does
+     */
+    static boolean nullable(Node node) {
+        return switch (node) {
+            case Chars _ -> false;
+            case Concat concat -> concat.nodes().stream().allMatch(Regex::nullable);
+            case Alt alt -> alt.nodes().stream().anyMatch(Regex::nullable);
+            case Repeat repeat -> repeat.min() == 0 || nullable(repeat.node());
+        };
+    }
+
+    private LexException error(String message) {
+        return new LexException("Bad regular expression %s at %d: %s", pattern, pos, message);
+    }
+
+    private boolean peek(char ch) {
+        return pos < pattern.length() && pattern.charAt(pos) == ch;
+    }
+
+    private Node alternation() {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(concatenation());
+        while (peek('|')) {
+            pos++;
+            nodes.add(concatenation());
+        }
+        return nodes.size() == 1 ? nodes.getFirst() : new Alt(nodes);
+    }
+
+    private Node concatenation() {
+        List<Node> nodes = new ArrayList<>();
+        while (pos < pattern.length() && !peek('|') && !peek(')')) {
+            nodes.add(quantified());
+        }
+        return nodes.size() == 1 ? nodes.getFirst() : new Concat(nodes);
+    }
+
+    private Node quantified() {
+        Node node = atom();
+        while (pos < pattern.length()) {
+            char ch = pattern.charAt(pos);
+            if (ch == '*') {
+                node = new Repeat(node, 0, -1);
+            } else if (ch == '+') {
+                node = new Repeat(node, 1, -1);
+            } else if (ch == '?') {
+                node = new Repeat(node, 0, 1);
+            } else if (ch == '{') {
+                pos++;
+                int min = number();
+                int max = min;
+                if (peek(',')) {
+                    pos++;
+                    max = peek('}') ? -1 : number();
+                }
+                if (!peek('}')) {
+                    throw error("expected }");
+                }
+                if (max >= 0 && max < min || Math.max(min, max) > MAX_REPEAT) {
+                    throw error("bad repetition {%d,%d}".formatted(min, max));
+                }
+                node = new Repeat(node, min, max);
+            } else {
+                break;
+            }
+            pos++;
+        }
+        return node;
+    }
+
+    private int number() {
+        int start = pos;
+        while (pos < pattern.length() && isDigit(pattern.charAt(pos)) && pos - start < 6) {
+            pos++;
+        }
+        if (start == pos) {
+            throw error("expected a number");
+        }
+        return Integer.parseInt(pattern, start, pos, 10);
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private Node atom() {
+        char ch = pattern.charAt(pos++);
+        return switch (ch) {
+            case '(' -> {
+                Node node = alternation();
+                if (!peek(')')) {
+                    throw error("expected )");
+                }
+                pos++;
+                yield node;
+            }
+            case '[' -> new Chars(set());
+            case '.' -> new Chars(DOT);
+            case '\\' -> new Chars(escape());
+            case '*', '+', '?', '{', ')' -> {
+                pos--;
+                throw error("nothing to repeat");
+            }
+            default -> new Chars(new int[]{ch, ch});
+        };
+    }
+
+    private int[] set() {
+        boolean negated = peek('^');
+        if (negated) {
+            pos++;
+        }
+
+        int[] ranges = {};
+        boolean first = true;
+        while (first || !peek(']')) {
+            if (pos >= pattern.length()) {
+                throw error("expected ]");
+            }
+            first = false;
+
+            char ch = pattern.charAt(pos++);
+            int[] item;
+            if (ch == '\\') {
+                item = escape();
+            } else {
+                item = new int[]{ch, ch};
+            }
+            if (item.length == 2 && item[0] == item[1] && peek('-') && pos + 1 < pattern.length()
+                && pattern.charAt(pos + 1) != ']') {
+                pos++;
+                char next = pattern.charAt(pos++);
+                int[] end = next == '\\' ? escape() : new int[]{next, next};
+                if (end.length != 2 || end[0] != end[1] || end[0] < item[0]) {
+                    throw error("bad range");
+                }
+                item = new int[]{item[0], end[0]};
+            }
+            ranges = union(ranges, item);
+        }
+        pos++;
+        return negated ? negate(ranges) : ranges;
+    }
+
+    private int[] escape() {
+        if (pos >= pattern.length()) {
+            throw error("expected an escaped character");
+        }
+        char ch = pattern.charAt(pos++);
+        return switch (ch) {
+            case 'd' -> DIGIT;
+            case 'D' -> negate(DIGIT);
+            case 's' -> SPACE;
+            case 'S' -> negate(SPACE);
+            case 'w' -> WORD;
+            case 'W' -> negate(WORD);
+            case 't' -> new int[]{'\t', '\t'};
+            case 'n' -> new int[]{'\n', '\n'};
+            case 'r' -> new int[]{'\r', '\r'};
+            case 'f' -> new int[]{'\f', '\f'};
+            case 'u' -> {
+                //exactly 4 ASCII hex digits, without the sign or other digits that parseInt takes
+                if (pos + 4 > pattern.length() || !pattern.chars().skip(pos).limit(4).allMatch(HexFormat::isHexDigit)) {
+                    throw error("expected 4 hex digits");
+                }
+                int value = HexFormat.fromHexDigits(pattern, pos, pos + 4);
+                pos += 4;
+                yield new int[]{value, value};
+            }
+            default -> {
+                if (Character.isLetterOrDigit(ch)) {
+                    throw error("unsupported escape \\" + ch);
+                }
+                yield new int[]{ch, ch};
+            }
+        };
+    }
+
+    /**
+     * Join two sets of ranges.
+     *
+     * @param lhs the ranges of one set
+     * @param rhs the ranges of the other set
+     * @return the ranges of the union
+     */
+    static int[] union(int[] lhs, int[] rhs) {
+        int[] all = Arrays.copyOf(lhs, lhs.length + rhs.length);
+        System.arraycopy(rhs, 0, all, lhs.length, rhs.length);
+
+        Integer[] order = new Integer[all.length / 2];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (i, j) -> Integer.compare(all[2 * i], all[2 * j]));
+
+        int[] ranges = new int[all.length];
+        int size = 0;
+        for (int i : order) {
+            int lo = all[2 * i];
+            int hi = all[2 * i + 1];
+            if (size > 0 && lo <= ranges[size - 1] + 1) {
+                ranges[size - 1] = Math.max(ranges[size - 1], hi);
+            } else {
+                ranges[size++] = lo;
+                ranges[size++] = hi;
+            }
+        }
+        return Arrays.copyOf(ranges, size);
+    }
+
+    /**
+     * Complement a set of ranges.
+     *
+     * @param ranges the ranges of the set
+     * @return the ranges of every other character
+     */
+    static int[] negate(int[] ranges) {
+        int[] negated = new int[ranges.length + 2];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                negated[size++] = next;
+                negated[size++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= MAX_CHAR) {
+            negated[size++] = next;
+            negated[size++] = MAX_CHAR;
+        }
+        return Arrays.copyOf(negated, size);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.function.Predicate;
+
+/**
+ * Token spliterator decoding UTF-8 directly from a memory segment.
+ * The spans of the tokens are byte offsets into the segment.
+ *
+ * <p>Malformed input is replaced by {@code U+FFFD}, one byte at a time.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+final class SegmentSpliterator<S, T> extends TokenSpliterator<S, T> {
+    /**
+     * The number of bytes decoded before checking in with the spliterator.
+     */
+    static final int CHUNK_SIZE = 8192;
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final MemorySegment segment;
+    private final long size;
+
+    private long pos;
+    private int low = -1;
+
+    /**
+     * Constructor
+     *
+     * @param machine the state machine
+     * @param segment the UTF-8 encoded segment
+     */
+    SegmentSpliterator(LexStateMachine<S, T> machine, MemorySegment segment) {
+        super(machine);
+        this.segment = segment;
+        this.size = segment.byteSize();
+    }
+
+    @Override
+    protected boolean feed(Predicate<T> sink) {
+        if (low >= 0) {
+            //the second half of a surrogate pair, the bytes were counted with the first half
+            char ch = (char) low;
+            low = -1;
+            if (!accept(sink, ch, 0)) {
+                return true;
+            }
+        }
+        if (pos >= size) {
+            return false;
+        }
+
+        long stop = Math.min(size, pos + CHUNK_SIZE);
+        while (pos < stop) {
+            int b = segment.get(ValueLayout.JAVA_BYTE, pos);
+            if (b >= 0) {
+                pos++;
+                if (!accept(sink, (char) b, 1)) {
+                    break;
+                }
+                continue;
+            }
+
+            int width;
+            int cp;
+            if ((b & 0xe0) == 0xc0) {
+                width = 2;
+                cp = b & 0x1f;
+            } else if ((b & 0xf0) == 0xe0) {
+                width = 3;
+                cp = b & 0x0f;
+            } else if ((b & 0xf8) == 0xf0) {
+                width = 4;
+                cp = b & 0x07;
+            } else {
+                width = 0;
+                cp = 0;
+            }
+            for (int i = 1; i < width; i++) {
+                if (pos + i >= size) {
+                    width = 0;
+                    break;
+                }
+                int c = segment.get(ValueLayout.JAVA_BYTE, pos + i);
+                if ((c & 0xc0) != 0x80) {
+                    width = 0;
+                    break;
+                }
+                cp = cp << 6 | c & 0x3f;
+            }
+            if (!valid(width, cp)) {
+                width = 1;
+                cp = REPLACEMENT;
+            }
+            pos += width;
+
+            if (Character.isBmpCodePoint(cp)) {
+                if (!accept(sink, (char) cp, width)) {
+                    break;
+                }
+            } else {
+                low = Character.lowSurrogate(cp);
+                if (!accept(sink, Character.highSurrogate(cp), width)) {
+                    break;
+                }
+                char ch = (char) low;
+                low = -1;
+                if (!accept(sink, ch, 0)) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean valid(int width, int cp) {
+        return switch (width) {
+            case 2 -> cp >= 0x80;
+            case 3 -> cp >= 0x800 && !Character.isSurrogate((char) cp);
+            case 4 -> cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT && cp <= Character.MAX_CODE_POINT;
+            default -> false;
+        };
+    }
+}
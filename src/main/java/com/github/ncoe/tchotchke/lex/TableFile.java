@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.function.CharacterPredicate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The file format of a compiled state machine.
+ *
+ * <p>The file holds a header, the names of the states, the compiled table, the resynchronization characters
+ * as a bit set over the characters, and a byte per state telling whether it accepts, for machines that backtrack. Everything is big endian. It is read by mapping it, and copying the arrays out
+ * of the mapping in bulk, so loading costs little more than the size of the tables.
+ * The sizes and the cells are checked as they are read, so that a corrupt file cannot make a machine that fails
+ * while lexing.
+ */
+final class TableFile {
+    private static final int MAGIC = 0x54434c58;
+    private static final int VERSION = 1;
+
+    private static final int CODE_POINTS = 1;
+    private static final int RESYNC = 2;
+    private static final int BACKTRACK = 4;
+
+    /**
+     * What a file holds.
+     *
+     * @param compiled   the table
+     * @param names      the name of each state
+     * @param init       the initial state id
+     * @param codePoints true when lexing code points
+     * @param resync     the resynchronization characters, or null
+     * @param accepting  whether each state accepts, or null when the machine does not backtrack
+     */
+    record Contents(
+        CompiledTable compiled,
+        List<String> names,
+        int init,
+        boolean codePoints,
+        CharacterPredicate resync,
+        boolean[] accepting
+    ) {
+        //empty
+    }
+
+    private TableFile() {
+        //empty
+    }
+
+    /**
+     * Write a file.
+     *
+     * @param path     the path of the file
+     * @param contents what to write
+     * @throws IOException if the file cannot be written
+     */
+    static void save(Path path, Contents contents) throws IOException {
+        Set<String> nameSet = new HashSet<>();
+        for (String name : contents.names()) {
+            if (!nameSet.add(name)) {
+                throw new LexException("More than one state is named %s", name);
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte((contents.codePoints() ? CODE_POINTS : 0)
+                | (contents.resync() != null ? RESYNC : 0)
+                | (contents.accepting() != null ? BACKTRACK : 0));
+            out.writeInt(contents.names().size());
+            out.writeInt(contents.init());
+            for (String name : contents.names()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            contents.compiled().write(out);
+            if (contents.resync() != null) {
+                long[] bits = new long[(Character.MAX_VALUE + 1) / Long.SIZE];
+                for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+                    if (contents.resync().test((char) ch)) {
+                        bits[ch >>> 6] |= 1L << ch;
+                    }
+                }
+                for (long word : bits) {
+                    out.writeLong(word);
+                }
+            }
+            if (contents.accepting() != null) {
+                for (boolean accepts : contents.accepting()) {
+                    out.writeBoolean(accepts);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a file.
+     *
+     * @param path the path of the file
+     * @return what the file holds
+     * @throws IOException if the file cannot be read
+     * @throws LexException if the file is truncated or corrupt
+     */
+    static Contents load(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new LexException("%s is not a state machine file of version %d", path, VERSION);
+            }
+            int flags = buffer.get();
+            int count = buffer.getInt();
+            int init = buffer.getInt();
+            if (count < 1 || count > LexTable.MAX_STATES || init < 0 || init >= count) {
+                throw new LexException("%s is corrupt: %d states, starting at %d", path, count, init);
+            }
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                names.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            CompiledTable compiled = CompiledTable.read(buffer, count);
+            boolean codePoints = (flags & CODE_POINTS) != 0;
+            if (compiled.width() != (codePoints ? Character.MAX_CODE_POINT : Character.MAX_VALUE) + 1) {
+                throw new LexException("%s is corrupt: a table of width %d", path, compiled.width());
+            }
+            CharacterPredicate resync = null;
+            if ((flags & RESYNC) != 0) {
+                long[] bits = new long[(Character.MAX_VALUE + 1) / Long.SIZE];
+                buffer.asLongBuffer().get(bits);
+                resync = ch -> (bits[ch >>> 6] & 1L << ch) != 0;
+                buffer.position(buffer.position() + bits.length * Long.BYTES);
+            }
+            boolean[] accepting = null;
+            if ((flags & BACKTRACK) != 0) {
+                accepting = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    accepting[i] = buffer.get() != 0;
+                }
+            }
+            return new Contents(compiled, names, init, codePoints, resync, accepting);
+        } catch (BufferUnderflowException e) {
+            throw new LexException("%s is truncated", path);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.function.Predicate;
+
+/**
+ * Token spliterator reading the characters of a string, without boxing them.
+ * The characters are copied a chunk at a time, so runs can be scanned in an array.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+final class TextSpliterator<S, T> extends TokenSpliterator<S, T> {
+    private final String text;
+    private final char[] buffer;
+
+    private int base;
+    private int pos;
+    private int lim;
+
+    /**
+     * Constructor
+     *
+     * @param machine the state machine
+     * @param text    the text
+     */
+    TextSpliterator(LexStateMachine<S, T> machine, String text) {
+        super(machine);
+        this.text = text;
+        this.buffer = new char[Math.min(text.length(), LexStateMachine.CHUNK_SIZE)];
+    }
+
+    @Override
+    protected boolean feed(Predicate<T> sink) {
+        if (pos == lim) {
+            base += lim;
+            pos = 0;
+            lim = Math.min(buffer.length, text.length() - base);
+            if (lim == 0) {
+                return false;
+            }
+            text.getChars(base, base + lim, buffer, 0);
+        }
+
+        pos = accept(sink, buffer, pos, lim);
+        return true;
+    }
+}
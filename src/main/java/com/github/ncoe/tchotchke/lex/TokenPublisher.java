@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.util.Assertion;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+
+/**
+ * Lexes encoded bytes as they are pushed to it, and publishes the tokens to a single subscriber.
+ *
+ * <p>The bytes are pushed with {@link #feed(ByteBuffer)}, in chunks that may split characters,
+ * and the end of the input is marked with {@link #close()}.
+ * Tokens are only published as the subscriber requests them. When it has no demand left,
+ * {@code feed} stops early and leaves the rest of the chunk in the buffer, so that memory stays bounded.
+ * The listener set with {@link #onDemand(Runnable)} is told when the rest can be fed.
+ *
+ * <p>Line endings are normalized as by a {@link Tokenizer}, and the spans of the tokens are offsets in characters.
+ * Malformed input is replaced, like a {@link java.io.InputStreamReader} does.
+ *
+ * <p>Failures of the lexer are signalled to the subscriber. An exception thrown by the subscriber itself
+ * cancels its subscription, and propagates to the caller that made the publisher signal it.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+public final class TokenPublisher<S, T> implements Flow.Publisher<T> {
+    private final LexStateMachine<S, T> machine;
+    private final CharsetDecoder decoder;
+    private final Predicate<T> sink = this::publish;
+
+    //bytes of a character split between chunks
+    private final ByteBuffer carry = ByteBuffer.allocate(16);
+
+    //decoded characters not lexed yet
+    private final char[] buffer = new char[ReaderSpliterator.BUFFER_SIZE];
+    private int pos;
+    private int lim;
+
+    private Flow.Subscriber<? super T> subscriber;
+    private Runnable listener;
+    private Throwable failure;
+    private T held;
+    private long demand;
+    private boolean signalling;
+    private boolean stalled;
+    private boolean closed;
+    private boolean flushed;
+    private boolean finished;
+    private boolean done;
+
+    /**
+     * The subscription of the subscriber.
+     */
+    private final class Subscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+            TokenPublisher.this.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (TokenPublisher.this) {
+                TokenPublisher.this.cancel();
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param machine the state machine (to be duplicated)
+     * @param charset the charset of the bytes
+     */
+    TokenPublisher(LexStateMachine<S, T> machine, Charset charset) {
+        this.machine = machine.duplicate();
+        this.decoder = charset
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Assertion.notNull(subscriber, "subscriber cannot be null");
+        synchronized (this) {
+            if (this.subscriber == null) {
+                this.subscriber = subscriber;
+                signalling = true;
+                try {
+                    subscriber.onSubscribe(new Subscription());
+                } finally {
+                    signalling = false;
+                }
+            } else {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                        //empty
+                    }
+
+                    @Override
+                    public void cancel() {
+                        //empty
+                    }
+                });
+                subscriber.onError(new IllegalStateException("The publisher already has a subscriber"));
+                return;
+            }
+            if (failure != null) {
+                //the input failed before there was anyone to tell
+                subscriber.onError(failure);
+                return;
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Set what to run when a chunk that was not fully fed can be fed again.
+     * It runs on the thread of the subscriber that requested more tokens.
+     *
+     * @param listener the listener
+     * @return this
+     */
+    public synchronized TokenPublisher<S, T> onDemand(Runnable listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Feed the next chunk of bytes.
+     * When the subscriber runs out of demand, the rest of the chunk is left in the buffer,
+     * and should be fed again once the {@link #onDemand(Runnable) listener} runs.
+     *
+     * @param chunk the bytes
+     * @return true if the whole chunk was taken
+     */
+    public synchronized boolean feed(ByteBuffer chunk) {
+        Assertion.notNull(chunk, "chunk cannot be null");
+        Assertion.isFalse(closed, "the publisher is closed");
+        if (done) {
+            chunk.position(chunk.limit());
+            return true;
+        }
+
+        while (drain()) {
+            if (done || !chunk.hasRemaining()) {
+                chunk.position(chunk.limit());
+                return true;
+            }
+            decode(chunk);
+        }
+        stalled = true;
+        return false;
+    }
+
+    /**
+     * Mark the end of the input. The last tokens are published as the subscriber requests them,
+     * followed by the completion, which waits for a subscriber when there is none yet.
+     */
+    public synchronized void close() {
+        closed = true;
+        complete();
+    }
+
+    private void request(long n) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                fail(new IllegalArgumentException("The number of tokens requested must be positive"));
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            if (signalling) {
+                //the tokens are published by the caller of the subscriber
+                return;
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Publish what the demand allows, and tell the listener if the producer can carry on.
+     */
+    private void pump() {
+        Runnable ready = null;
+        synchronized (this) {
+            //the completion needs no demand
+            if (done || demand == 0 && !closed) {
+                return;
+            }
+            if (closed) {
+                complete();
+            } else if (drain() && stalled) {
+                stalled = false;
+                ready = listener;
+            }
+        }
+        if (ready != null) {
+            ready.run();
+        }
+    }
+
+    /**
+     * Publish a token, or hold it until the subscriber requests more.
+     *
+     * @param token the token
+     * @return true if more tokens can be published
+     */
+    private boolean publish(T token) {
+        if (demand == 0) {
+            held = token;
+            return false;
+        }
+        demand--;
+        signal(token);
+        return demand > 0 && !done;
+    }
+
+    private void signal(T token) {
+        signalling = true;
+        try {
+            subscriber.onNext(token);
+        } catch (RuntimeException e) {
+            //the subscriber broke the protocol, so it is not told about its own failure
+            cancel();
+            throw e;
+        } finally {
+            signalling = false;
+        }
+    }
+
+    /**
+     * Lex the decoded characters, as far as the demand allows.
+     *
+     * @return true if all of them were lexed
+     */
+    private boolean drain() {
+        if (held != null) {
+            if (demand == 0) {
+                return false;
+            }
+            T token = held;
+            held = null;
+            demand--;
+            signal(token);
+        }
+        while (pos < lim && demand > 0 && !done) {
+            try {
+                pos = machine.process(sink, buffer, pos, lim);
+            } catch (RuntimeException e) {
+                lexFailed(e);
+            }
+        }
+        return pos == lim || done;
+    }
+
+    /**
+     * Decode the next characters from a chunk, once the previous ones are lexed.
+     *
+     * @param chunk the chunk
+     */
+    private void decode(ByteBuffer chunk) {
+        CharBuffer out = CharBuffer.wrap(buffer);
+        try {
+            if (carry.position() > 0) {
+                //complete the character split from the previous chunk, a byte at a time
+                while (carry.position() > 0 && chunk.hasRemaining() && out.hasRemaining()) {
+                    carry.put(chunk.get());
+                    carry.flip();
+                    decoder.decode(carry, out, false);
+                    carry.compact();
+                }
+            } else {
+                decoder.decode(chunk, out, false);
+                if (out.hasRemaining() && chunk.hasRemaining()) {
+                    carry.put(chunk);
+                }
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+        pos = 0;
+        lim = out.position();
+    }
+
+    /**
+     * Publish the rest of the tokens, and the completion, as far as the demand allows.
+     */
+    private void complete() {
+        if (done || subscriber == null || !drain()) {
+            return;
+        }
+        if (!flushed) {
+            flushed = true;
+            CharBuffer out = CharBuffer.wrap(buffer);
+            try {
+                carry.flip();
+                decoder.decode(carry, out, true);
+                decoder.flush(out);
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            pos = 0;
+            lim = out.position();
+            if (!drain()) {
+                return;
+            }
+        }
+        if (!finished) {
+            try {
+                finished = machine.finish(sink);
+            } catch (RuntimeException e) {
+                lexFailed(e);
+                return;
+            }
+        }
+        if (finished && held == null && !done) {
+            done = true;
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * Handle an exception out of the machine, which either failed to lex,
+     * or passed on an exception of the subscriber, thrown while publishing a token.
+     *
+     * @param e the exception
+     */
+    private void lexFailed(RuntimeException e) {
+        if (done) {
+            //the subscriber threw, and was cancelled
+            throw e;
+        }
+        fail(e);
+    }
+
+    private void cancel() {
+        done = true;
+        held = null;
+    }
+
+    private void fail(Throwable e) {
+        if (e instanceof LexException lexException) {
+            lexException.record();
+        }
+        cancel();
+        if (subscriber != null) {
+            subscriber.onError(e);
+        } else {
+            failure = e;
+        }
+    }
+}
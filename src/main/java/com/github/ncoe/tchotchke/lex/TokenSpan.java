@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+/**
+ * A read-only view of the text of the token being built.
+ *
+ * <p>The view is reused for every token of a state machine, and is only valid during the call to the factory.
+ * Use {@link #toString()} to keep the text.
+ *
+ * <p>The span also reports where the text was found in the source, in the units of the source:
+ * characters for text, and bytes for a {@link java.lang.foreign.MemorySegment}.
+ * Its line and column are packed into a single {@code long}, see {@link #position()}.
+ */
+public final class TokenSpan implements CharSequence {
+    private final StringBuilder builder;
+
+    long start;
+    long end;
+    long position = position(1, 1);
+
+    /**
+     * Constructor
+     *
+     * @param builder the token text
+     */
+    TokenSpan(StringBuilder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Get the offset in the source of the first character of the text.
+     *
+     * @return the offset
+     */
+    public long start() {
+        return start;
+    }
+
+    /**
+     * Get the offset in the source just past the last character of the text.
+     *
+     * @return the offset
+     */
+    public long end() {
+        return end;
+    }
+
+    /**
+     * Get the line and column of the first character of the text, packed into a {@code long}.
+     * Lines are broken the same way as {@link com.github.ncoe.tchotchke.stream.LineEndingGatherer},
+     * and columns count the characters (or code points, when lexing them) from the start of the line.
+     * Both start at 1.
+     *
+     * @return the packed position
+     * @see #line(long)
+     * @see #column(long)
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Pack a line and column.
+     *
+     * @param line   the line
+     * @param column the column
+     * @return the packed position
+     */
+    static long position(int line, int column) {
+        return (long) line << 32 | column & 0xffffffffL;
+    }
+
+    /**
+     * Get the line of a packed position.
+     *
+     * @param position the packed position
+     * @return the line, starting at 1
+     */
+    public static int line(long position) {
+        return (int) (position >>> 32);
+    }
+
+    /**
+     * Get the column of a packed position.
+     *
+     * @param position the packed position
+     * @return the column, starting at 1
+     */
+    public static int column(long position) {
+        return (int) position;
+    }
+
+    @Override
+    public int length() {
+        return builder.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return builder.substring(start, end);
+    }
+
+    /**
+     * Compare the text to a character sequence, without materializing the text.
+     *
+     * @param other the other sequence
+     * @return true if the characters are the same
+     */
+    public boolean contentEquals(CharSequence other) {
+        return CharSequence.compare(builder, other) == 0;
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
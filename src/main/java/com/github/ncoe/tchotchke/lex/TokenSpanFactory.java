@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import com.github.ncoe.tchotchke.option.Option;
+
+/**
+ * Token Factory working on a view of the text, so the text is only materialized when the token needs it.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+@FunctionalInterface
+public interface TokenSpanFactory<S, T> {
+    /**
+     * Create a token given the state that produced it, and the text produced.
+     *
+     * @param state the state name
+     * @param span  the text, only valid during this call
+     * @param end   is the final token in the stream
+     * @return the optional token (must not be null)
+     */
+    Option<T> invoke(S state, TokenSpan span, boolean end);
+}
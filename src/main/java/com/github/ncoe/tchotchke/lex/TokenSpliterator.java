@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Spliterator that pulls characters from a source, and feeds them to a state machine.
+ *
+ * <p>Line endings are normalized the same way as {@link com.github.ncoe.tchotchke.stream.LineEndingGatherer}.
+ * Only the characters of a single token are buffered, besides whatever the source buffers.
+ *
+ * <p>When the flight recorder records them, a {@link LexEvent} covers the whole source,
+ * and a {@link LexProgressEvent} is sampled every so many tokens.
+ * The event is committed once the source is exhausted, or by {@link #end()} when the stream is closed first.
+ *
+ * @param <S> the type of state
+ * @param <T> the type of token
+ */
+abstract class TokenSpliterator<S, T> implements Spliterator<T> {
+    private final LexStateMachine<S, T> machine;
+    private final Predicate<T> hold = this::hold;
+
+    private T next;
+    private boolean held;
+    private boolean done;
+
+    private boolean started;
+    private LexEvent event;
+    private LexProgressEvent progress;
+    private long tokens;
+    private long sampleChars;
+    private long sampleTokens;
+
+    /**
+     * Constructor
+     *
+     * @param machine the state machine (to be duplicated)
+     */
+    TokenSpliterator(LexStateMachine<S, T> machine) {
+        this.machine = machine.duplicate();
+    }
+
+    /**
+     * Feed the next characters to the state machine, using one of the {@code accept} methods.
+     * Stop early when a character is not accepted.
+     *
+     * @param sink the token sink
+     * @return false when the source is exhausted
+     */
+    protected abstract boolean feed(Predicate<T> sink);
+
+    /**
+     * Accept the next character from the source.
+     *
+     * @param sink  the token sink
+     * @param ch    the character
+     * @param width the number of source units of the character
+     * @return true if more characters can be fed
+     */
+    protected final boolean accept(Predicate<T> sink, char ch, int width) {
+        return machine.feed(sink, ch, width);
+    }
+
+    /**
+     * Accept a range of characters from the source, one source unit each.
+     *
+     * @param sink the token sink
+     * @param text the text
+     * @param from the index of the first character (inclusive)
+     * @param to   the index of the last character (exclusive)
+     * @return the index of the next character to accept, which is less than {@code to} when the sink declined
+     */
+    protected final int accept(Predicate<T> sink, char[] text, int from, int to) {
+        return machine.feed(sink, text, from, to);
+    }
+
+    private boolean hold(T token) {
+        emitted();
+        next = token;
+        held = true;
+        return false;
+    }
+
+    /**
+     * Begin the events that are enabled, once the first token is requested.
+     */
+    private void start() {
+        started = true;
+        LexEvent lexEvent = new LexEvent();
+        if (lexEvent.isEnabled()) {
+            lexEvent.begin();
+            event = lexEvent;
+        }
+        LexProgressEvent progressEvent = new LexProgressEvent();
+        if (progressEvent.isEnabled()) {
+            progressEvent.begin();
+            progress = progressEvent;
+        }
+    }
+
+    /**
+     * Count a token, and sample the progress every so many tokens.
+     */
+    private void emitted() {
+        if ((++tokens & (LexProgressEvent.SAMPLE - 1)) == 0 && progress != null) {
+            progress.end();
+            if (progress.shouldCommit()) {
+                progress.grammar = machine.name();
+                progress.chars = machine.offset() - sampleChars;
+                progress.tokens = tokens - sampleTokens;
+                progress.commit();
+            }
+            sampleChars = machine.offset();
+            sampleTokens = tokens;
+            progress = new LexProgressEvent();
+            progress.begin();
+        }
+    }
+
+    /**
+     * Commit the event of the source, once it is exhausted, or when its stream is closed before that.
+     */
+    void end() {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.grammar = machine.name();
+                event.chars = machine.offset();
+                event.tokens = tokens;
+                event.commit();
+            }
+            event = null;
+        }
+        progress = null;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (!started) {
+            start();
+        }
+        try {
+            while (!held && !done) {
+                if (machine.resume(hold) && !feed(hold) && machine.flush(hold)) {
+                    done = true;
+                    machine.consume(hold);
+                    end();
+                }
+            }
+        } catch (LexException e) {
+            throw e.record();
+        }
+        if (!held) {
+            return false;
+        }
+
+        T token = next;
+        next = null;
+        held = false;
+        action.accept(token);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        if (held) {
+            tryAdvance(action);
+        }
+        if (done) {
+            return;
+        }
+        if (!started) {
+            start();
+        }
+
+        Predicate<T> sink = token -> {
+            emitted();
+            action.accept(token);
+            return true;
+        };
+        try {
+            machine.resume(sink);
+            while (feed(sink)) {
+                //keep feeding
+            }
+            machine.flush(sink);
+            done = true;
+            machine.consume(sink);
+        } catch (LexException e) {
+            throw e.record();
+        }
+        end();
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -4,9 +4,23 @@
 
 package com.github.ncoe.tchotchke.lex;
 
-import com.github.ncoe.tchotchke.stream.LineEndingGatherer;
-
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * State based tokenizer
@@ -29,16 +43,197 @@ public final class Tokenizer<S, T> {
 
     /**
      * Split a string into tokens.
+     * The characters are fed to the state machine straight from the string, as UTF-16 units.
      *
      * @param text the text to be tokenized
      * @return the stream of tokens
      */
     public Stream<T> lex(String text) {
-        //todo should int-stream get a gatherer specialization, modify these classes
-        return text
-            .codePoints()
-            .mapToObj(i -> (char) i)
-            .gather(new LineEndingGatherer())
-            .gather(new TokenGatherer<>(stateMachine));
+        TextSpliterator<S, T> spliterator = new TextSpliterator<>(stateMachine, text);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::end);
+    }
+
+    /**
+     * Split text into tokens, lexing parts of it in parallel.
+     * The text is only split after the resynchronization characters of the state machine,
+     * and when it is large enough to be worth it; otherwise it is lexed in sequence.
+     *
+     * @param text the text to be tokenized
+     * @return the list of tokens, in order
+     * @see LexStateMachine.Builder#resync(com.github.ncoe.tchotchke.function.CharacterPredicate)
+     */
+    public List<T> lexParallel(CharSequence text) {
+        int parts = Math.min(4 * ForkJoinPool.getCommonPoolParallelism(), text.length() / ParallelLexer.MIN_PART);
+        return lexParallel(text, parts);
+    }
+
+    /**
+     * Split text into tokens, lexing parts of it in parallel.
+     *
+     * @param text        the text to be tokenized
+     * @param parallelism the number of parts to aim for
+     * @return the list of tokens, in order
+     */
+    List<T> lexParallel(CharSequence text, int parallelism) {
+        LexEvent event = new LexEvent();
+        event.begin();
+        List<T> tokens;
+        try {
+            tokens = new ParallelLexer<>(stateMachine, text).lex(parallelism);
+        } catch (LexException e) {
+            //only the errors of the parts that were needed reach here
+            throw e.record();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.grammar = stateMachine.name();
+            event.chars = text.length();
+            event.tokens = tokens.size();
+            event.commit();
+        }
+        return tokens;
+    }
+
+    /**
+     * Split text into tokens, keeping what is needed to update them as the text is edited.
+     *
+     * @param text the text to be tokenized
+     * @return the incremental lexer, holding the tokens
+     */
+    public IncrementalLexer<S, T> lexIncremental(CharSequence text) {
+        return new IncrementalLexer<>(stateMachine, text);
+    }
+
+    /**
+     * Split the characters of a reader into tokens, as they are read.
+     * Closing the stream closes the reader.
+     *
+     * @param reader the reader
+     * @return the stream of tokens
+     */
+    public Stream<T> lex(Reader reader) {
+        ReaderSpliterator<S, T> spliterator = new ReaderSpliterator<>(stateMachine, reader);
+        return StreamSupport
+            .stream(spliterator, false)
+            .onClose(spliterator::end)
+            .onClose(() -> {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+    }
+
+    /**
+     * Split the characters of a reader into tokens, reading ahead on a virtual thread while lexing.
+     * Closing the stream stops reading ahead, and closes the reader.
+     *
+     * @param reader the reader
+     * @return the stream of tokens
+     */
+    public Stream<T> lexPipelined(Reader reader) {
+        return lexPipelined(reader, new PipelineStats());
+    }
+
+    /**
+     * Split the characters of a reader into tokens, reading ahead on a virtual thread while lexing.
+     * Closing the stream stops reading ahead, and closes the reader.
+     *
+     * @param reader the reader
+     * @param stats  the statistics of the stages, updated as the stream runs
+     * @return the stream of tokens
+     */
+    public Stream<T> lexPipelined(Reader reader, PipelineStats stats) {
+        PipelinedSpliterator<S, T> spliterator = new PipelinedSpliterator<>(stateMachine, reader, stats);
+        return StreamSupport
+            .stream(spliterator, false)
+            .onClose(spliterator::end)
+            .onClose(() -> {
+                try {
+                    spliterator.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+    }
+
+    /**
+     * Split the decoded characters of an input stream into tokens, as they are read.
+     * Closing the stream closes the input stream.
+     *
+     * @param input   the input stream
+     * @param charset the charset
+     * @return the stream of tokens
+     */
+    public Stream<T> lex(InputStream input, Charset charset) {
+        return lex(new InputStreamReader(input, charset));
+    }
+
+    /**
+     * Split the characters of a UTF-8 file into tokens, as they are read.
+     * The stream should be closed to close the file.
+     *
+     * @param path the path of the file
+     * @return the stream of tokens
+     * @throws IOException if the file cannot be opened
+     */
+    public Stream<T> lex(Path path) throws IOException {
+        return lex(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Split the characters of a file into tokens, as they are read.
+     * The stream should be closed to close the file.
+     *
+     * @param path    the path of the file
+     * @param charset the charset
+     * @return the stream of tokens
+     * @throws IOException if the file cannot be opened
+     */
+    public Stream<T> lex(Path path, Charset charset) throws IOException {
+        return lex(Files.newInputStream(path), charset);
+    }
+
+    /**
+     * Make a publisher of the tokens of encoded bytes, which are pushed to it in chunks.
+     *
+     * @param charset the charset of the bytes
+     * @return the publisher
+     */
+    public TokenPublisher<S, T> publisher(Charset charset) {
+        return new TokenPublisher<>(stateMachine, charset);
+    }
+
+    /**
+     * Split UTF-8 encoded memory into tokens, decoding it in place.
+     * The spans of the tokens are byte offsets into the segment.
+     *
+     * @param segment the segment
+     * @return the stream of tokens
+     */
+    public Stream<T> lex(MemorySegment segment) {
+        SegmentSpliterator<S, T> spliterator = new SegmentSpliterator<>(stateMachine, segment);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::end);
+    }
+
+    /**
+     * Split a UTF-8 file into tokens, by mapping it into memory rather than reading it.
+     * The spans of the tokens are byte offsets into the file.
+     * The stream should be closed to unmap the file.
+     *
+     * @param path the path of the file
+     * @return the stream of tokens
+     * @throws IOException if the file cannot be mapped
+     */
+    public Stream<T> lexMapped(Path path) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            return lex(segment).onClose(arena::close);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
     }
 }
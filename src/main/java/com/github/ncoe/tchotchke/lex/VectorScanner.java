@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Finds the end of a run by comparing many characters at once with the incubating Vector API.
+ * Only loaded when {@link VectorSupport#ENABLED} is true.
+ */
+final class VectorScanner {
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+    private VectorScanner() {
+        //empty
+    }
+
+    /**
+     * Get the number of characters compared at once.
+     *
+     * @return the number of lanes
+     */
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    /**
+     * Find the first character outside the ranges, or the first surrogate when lexing code points.
+     *
+     * @param chars      the characters
+     * @param from       the index of the first character (inclusive)
+     * @param to         the index of the last character (exclusive)
+     * @param ranges     the inclusive bounds of the ranges, in pairs
+     * @param codePoints true if surrogates end the run
+     * @return the index of the first character outside the ranges, or {@code to}
+     */
+    static int scan(char[] chars, int from, int to, char[] ranges, boolean codePoints) {
+        //the last vector may read past the end of the run, as long as it stays within the array
+        int pos = from;
+        int bound = Math.min(to, chars.length - SPECIES.length() + 1);
+        for (; pos < bound; pos += SPECIES.length()) {
+            ShortVector vector = ShortVector.fromCharArray(SPECIES, chars, pos);
+            VectorMask<Short> in = contains(vector, ranges[0], ranges[1]);
+            for (int i = 2; i < ranges.length; i += 2) {
+                in = in.or(contains(vector, ranges[i], ranges[i + 1]));
+            }
+            if (codePoints) {
+                in = in.andNot(contains(vector, Character.MIN_SURROGATE, Character.MAX_SURROGATE));
+            }
+            if (!in.allTrue()) {
+                return Math.min(to, pos + in.not().firstTrue());
+            }
+        }
+
+        for (; pos < to; pos++) {
+            char ch = chars[pos];
+            if (!contains(ch, ranges) || codePoints && Character.isSurrogate(ch)) {
+                return pos;
+            }
+        }
+        return to;
+    }
+
+    private static VectorMask<Short> contains(ShortVector vector, char lo, char hi) {
+        //a single unsigned comparison, as the characters below lo wrap around past hi
+        return vector
+            .sub((short) lo)
+            .compare(VectorOperators.UNSIGNED_LE, (short) (hi - lo));
+    }
+
+    private static boolean contains(char ch, char[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] <= ch && ch <= ranges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2025.
+ */
+
+package com.github.ncoe.tchotchke.lex;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Checks whether runs can be scanned with the incubating Vector API, without loading any of its classes.
+ *
+ * <p>The module {@code jdk.incubator.vector} has to be added to the boot layer, such as with
+ * {@code --add-modules jdk.incubator.vector}. The scan can also be turned off by setting the system property
+ * {@value #PROPERTY} to {@code false}.
+ */
+final class VectorSupport {
+    /**
+     * The system property turning the vector scan off.
+     */
+    static final String PROPERTY = "com.github.ncoe.tchotchke.lex.vector";
+
+    /**
+     * The most ranges of characters in a run that is scanned with vectors.
+     */
+    static final int MAX_RANGES = 4;
+
+    /**
+     * True if runs are scanned with vectors.
+     */
+    static final boolean ENABLED = enabled();
+
+    private VectorSupport() {
+        //empty
+    }
+
+    private static boolean enabled() {
+        if (!Boolean.parseBoolean(System.getProperty(PROPERTY, "true"))) {
+            return false;
+        }
+
+        Optional<Module> vector = ModuleLayer.boot().findModule("jdk.incubator.vector");
+        Module self = VectorSupport.class.getModule();
+        if (vector.isEmpty() || self.isNamed() && !self.canRead(vector.get())) {
+            return false;
+        }
+
+        try {
+            //narrower vectors would not pay for themselves
+            return VectorScanner.lanes() >= 8;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Describe the characters that each state shifts onto itself as ranges, when there are few enough of them.
+     * Carriage returns are left out, as they always end a run. Surrogates are not, even when lexing code points,
+     * so that they do not split a range; the scan leaves them out itself.
+     *
+     * @param table the table
+     * @param loops the states shifting some characters onto themselves
+     * @return the inclusive bounds of the ranges of each state, in pairs, or null for a state without few ranges
+     */
+    static char[][] ranges(LexTable table, boolean[] loops) {
+        char[][] ranges = new char[loops.length][];
+        for (int state = 0; state < loops.length; state++) {
+            if (loops[state]) {
+                ranges[state] = ranges(table, state);
+            }
+        }
+        return ranges;
+    }
+
+    private static char[] ranges(LexTable table, int state) {
+        int loop = LexTable.cell(LexAction.SHIFT, state, 0);
+        char[] bounds = new char[2 * MAX_RANGES];
+        int count = 0;
+        boolean inside = false;
+        for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+            boolean in = ch != Characters.CP_CR && LexTable.clearToken(table.transition(state, ch)) == loop;
+            if (in && !inside) {
+                if (count == bounds.length) {
+                    return null;
+                }
+                bounds[count++] = (char) ch;
+            } else if (!in && inside) {
+                bounds[count++] = (char) (ch - 1);
+            }
+            inside = in;
+        }
+        if (inside) {
+            bounds[count++] = Character.MAX_VALUE;
+        }
+        return count == 0 ? null : Arrays.copyOf(bounds, count);
+    }
+}
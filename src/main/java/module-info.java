@@ -1,4 +1,7 @@
 module com.github.ncoe.tchotchke {
+    requires static jdk.incubator.vector;
+    requires jdk.jfr;
+
     exports com.github.ncoe.tchotchke.function;
     exports com.github.ncoe.tchotchke.lex;
     exports com.github.ncoe.tchotchke.mutable;
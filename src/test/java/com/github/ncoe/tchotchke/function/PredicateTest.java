@@ -56,6 +56,29 @@ public class PredicateTest {
         Assert.assertTrue(evaluateChar(pSS, '@'));
     }
 
+    @Test
+    public void predicateCodePoint() {
+        CodePointPredicate pE = cp -> cp == 0x1f600;
+        CodePointPredicate pEn = pE.negate();
+        Assert.assertFalse(pEn.test(0x1f600));
+        Assert.assertTrue(pEn.test('a'));
+
+        CodePointPredicate pP = CodePointPredicate.of(Character::isSupplementaryCodePoint);
+        CodePointPredicate pPE = pP.and(pE.negate());
+        Assert.assertTrue(pPE.test(0x20000));
+        Assert.assertFalse(pPE.test(0x1f600));
+        Assert.assertFalse(pPE.test('a'));
+
+        //character predicates never match supplementary code points, so their negation always does
+        CodePointPredicate pC = CodePointPredicate.from(ch -> ch == 'a');
+        Assert.assertTrue(pC.test('a'));
+        Assert.assertFalse(pC.test(0x20000));
+        Assert.assertTrue(pC.negate().test(0x20000));
+        Assert.assertTrue(pE.or(ch -> ch == 'a').test('a'));
+        Assert.assertTrue(evaluateChar(pE.or(ch -> ch == 'a'), 'a'));
+        Assert.assertSame(CodePointPredicate.from(pE), pE);
+    }
+
     private static boolean evaluateShort(ShortPredicate predicate, short value) {
         return predicate.test(value);
     }
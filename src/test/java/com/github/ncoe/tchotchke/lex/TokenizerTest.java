@@ -5,12 +5,45 @@
 package com.github.ncoe.tchotchke.lex;
 
 import com.github.ncoe.tchotchke.function.CharacterPredicate;
+import com.github.ncoe.tchotchke.function.CodePointPredicate;
 import com.github.ncoe.tchotchke.option.Option;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class TokenizerTest {
     private enum LexState {
@@ -21,39 +54,47 @@ public class TokenizerTest {
         ERROR,
     }
 
-    private static final Tokenizer<LexState, String> TOKENIZER = new Tokenizer<>(LexStateMachine
-        .builder(LexState.START)
-        //-------------------------------------------------------------------------------
-        .add(List.of(Characters.HT, Characters.LF), LexAction.SHIFT, LexState.SPACE)
-        .add(Characters.CONTROL, LexAction.SHIFT, LexState.ERROR)
-        .add(Characters.SPACE, LexAction.SHIFT, LexState.SPACE)
-        .add(Characters.DIGIT, LexAction.SHIFT, LexState.INTEGER)
-        .add(List.of(Characters.UPPER, Characters.of('_'), Characters.LOWER), LexAction.SHIFT, LexState.IDENTIFIER)
-        .add(Characters.DEL, LexAction.SHIFT, LexState.ERROR)
-        .add(Characters.ASCII, LexAction.SHIFT_REDUCE)
-        .add(Characters.any(), LexAction.SHIFT, LexState.ERROR)
-        //-------------------------------------------------------------------------------
-        .begin(LexState.SPACE)
-        .add(List.of(Characters.HT, Characters.LF), LexAction.SHIFT)
-        .add(Characters.SPACE, LexAction.SHIFT)
-        .add(Characters.any(), LexAction.REDUCE, LexState.START)
-        //-------------------------------------------------------------------------------
-        .begin(LexState.IDENTIFIER)
-        .add(Characters.DIGIT, LexAction.SHIFT)
-        .add(List.of(Characters.UPPER, Characters.of('_'), Characters.LOWER), LexAction.SHIFT)
-        .add(Characters.any(), LexAction.REDUCE, LexState.START)
-        //-------------------------------------------------------------------------------
-        .begin(LexState.INTEGER)
-        .add(Characters.DIGIT, LexAction.SHIFT)
-        .add(Characters.any(), LexAction.REDUCE, LexState.START)
-        //-------------------------------------------------------------------------------
-        .begin(LexState.ERROR)
-        .add(List.of(Characters.HT, Characters.LF), LexAction.REDUCE, LexState.START)
-        .add(Characters.CONTROL, LexAction.SHIFT)
-        .add(Characters.ASCII, LexAction.REDUCE, LexState.START)
-        .add(Characters.any(), LexAction.SHIFT)
-        //-------------------------------------------------------------------------------
+    private static final Tokenizer<LexState, String> TOKENIZER = new Tokenizer<>(grammar().build(true));
+    private static final Tokenizer<LexState, String> COMPILED = new Tokenizer<>(grammar()
+        .mode(LexMode.COMPILED)
         .build(true));
+    private static final Tokenizer<LexState, String> GENERATED = new Tokenizer<>(grammar()
+        .mode(LexMode.GENERATED)
+        .build(true));
+
+    private static LexStateMachine.Builder<LexState, String> grammar() {
+        return LexStateMachine
+            .builder(LexState.START)
+            //-------------------------------------------------------------------------------
+            .add(List.of(Characters.HT, Characters.LF), LexAction.SHIFT, LexState.SPACE)
+            .add(Characters.CONTROL, LexAction.SHIFT, LexState.ERROR)
+            .add(Characters.SPACE, LexAction.SHIFT, LexState.SPACE)
+            .add(Characters.DIGIT, LexAction.SHIFT, LexState.INTEGER)
+            .add(List.of(Characters.UPPER, Characters.of('_'), Characters.LOWER), LexAction.SHIFT, LexState.IDENTIFIER)
+            .add(Characters.DEL, LexAction.SHIFT, LexState.ERROR)
+            .add(Characters.ASCII, LexAction.SHIFT_REDUCE)
+            .add(Characters.any(), LexAction.SHIFT, LexState.ERROR)
+            //-------------------------------------------------------------------------------
+            .begin(LexState.SPACE)
+            .add(List.of(Characters.HT, Characters.LF), LexAction.SHIFT)
+            .add(Characters.SPACE, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, LexState.START)
+            //-------------------------------------------------------------------------------
+            .begin(LexState.IDENTIFIER)
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(List.of(Characters.UPPER, Characters.of('_'), Characters.LOWER), LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, LexState.START)
+            //-------------------------------------------------------------------------------
+            .begin(LexState.INTEGER)
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, LexState.START)
+            //-------------------------------------------------------------------------------
+            .begin(LexState.ERROR)
+            .add(List.of(Characters.HT, Characters.LF), LexAction.REDUCE, LexState.START)
+            .add(Characters.CONTROL, LexAction.SHIFT)
+            .add(Characters.ASCII, LexAction.REDUCE, LexState.START)
+            .add(Characters.any(), LexAction.SHIFT);
+    }
 
     @DataProvider
     public static Object[][] lexProvider() {
@@ -63,6 +104,7 @@ public class TokenizerTest {
             {"a\r\nb", List.of("a", "\n", "b")},
             {"a\rb", List.of("a", "\n", "b")},
             {"a\nb", List.of("a", "\n", "b")},
+            {"a\ud834\udd1e", List.of("a", "\ud834\udd1e")},
         };
     }
 
@@ -72,6 +114,106 @@ public class TokenizerTest {
         Assert.assertEquals(tokenList, expectedList);
     }
 
+    @Test(dataProvider = "lexProvider")
+    public void lexCompiled(String source, List<String> expectedList) {
+        List<String> tokenList = COMPILED.lex(source).toList();
+        Assert.assertEquals(tokenList, expectedList);
+    }
+
+    @Test(dataProvider = "lexProvider")
+    public void lexGenerated(String source, List<String> expectedList) {
+        List<String> tokenList = GENERATED.lex(source).toList();
+        Assert.assertEquals(tokenList, expectedList);
+    }
+
+    @Test(dataProvider = "lexProvider")
+    public void lexReader(String source, List<String> expectedList) {
+        try (Stream<String> stream = TOKENIZER.lex(new StringReader(source))) {
+            Assert.assertEquals(stream.toList(), expectedList);
+        }
+    }
+
+    @Test(dataProvider = "lexProvider")
+    public void lexInputStream(String source, List<String> expectedList) {
+        InputStream input = new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_16LE));
+        try (Stream<String> stream = TOKENIZER.lex(input, StandardCharsets.UTF_16LE)) {
+            Assert.assertEquals(stream.toList(), expectedList);
+        }
+    }
+
+    @Test
+    public void lexPath() throws IOException {
+        //line endings split across the buffers
+        String source = "a1 b2\r\n".repeat(ReaderSpliterator.BUFFER_SIZE / 3);
+        Path path = Files.createTempFile("tokenizer", ".txt");
+        try {
+            Files.writeString(path, source);
+            try (Stream<String> stream = TOKENIZER.lex(path)) {
+                Assert.assertEquals(stream.toList(), TOKENIZER.lex(source).toList());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void lexSegment() throws IOException {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .spanBuilder("start", (state, span, _) -> {
+                if (span.isEmpty() || "space".equals(state)) {
+                    return Option.none();
+                }
+                return Option.some(span + "@" + span.start() + "-" + span.end());
+            })
+            .add(Characters.SPACE, LexAction.SHIFT, "space")
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("space")
+            .add(Characters.SPACE, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(Characters.SPACE, LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .build());
+
+        //one, two and four byte characters, and a stray continuation byte
+        String source = "a\u00e9 \ud834\udd1eb \u4e2d";
+        byte[] bytes = (source + " \u0080").getBytes(StandardCharsets.UTF_8);
+        bytes[bytes.length - 2] = (byte) 0x80;
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 1);
+        List<String> expectedList = List.of("a\u00e9@0-3", "\ud834\udd1eb@4-9", "\u4e2d@10-13", "\ufffd@14-15");
+        Assert.assertEquals(tokenizer.lex(MemorySegment.ofArray(truncated)).toList(), expectedList);
+
+        Path path = Files.createTempFile("tokenizer", ".txt");
+        try {
+            Files.write(path, truncated);
+            try (Stream<String> stream = tokenizer.lexMapped(path)) {
+                Assert.assertEquals(stream.toList(), expectedList);
+            }
+        } finally {
+            Files.delete(path);
+        }
+
+        //characters rather than bytes
+        List<String> charList = List.of("a\u00e9@0-2", "\ud834\udd1eb@3-6", "\u4e2d@7-8");
+        Assert.assertEquals(tokenizer.lex(new StringReader(source)).toList(), charList);
+    }
+
+    @Test
+    public void lexReaderClose() {
+        AtomicBoolean closed = new AtomicBoolean();
+        Reader reader = new StringReader("hello") {
+            @Override
+            public void close() {
+                closed.set(true);
+                super.close();
+            }
+        };
+        try (Stream<String> stream = TOKENIZER.lex(reader)) {
+            Assert.assertEquals(stream.findFirst(), Optional.of("hello"));
+        }
+        Assert.assertTrue(closed.get());
+    }
+
     @Test(expectedExceptions = LexException.class)
     public void error() {
         Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
@@ -99,6 +241,9 @@ public class TokenizerTest {
 
         long cnt = tokenizer.lex("ops").limit(1).count();
         Assert.assertEquals(cnt, 1);
+
+        long rdr = tokenizer.lex(new StringReader("ops")).limit(1).count();
+        Assert.assertEquals(rdr, 1);
     }
 
     @Test
@@ -160,6 +305,379 @@ public class TokenizerTest {
         Assert.assertEquals(tokenList, List.of("hello", "world", "123"));
     }
 
+    @Test
+    public void tokenSpan() {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .spanBuilder("start", (state, span, _) -> {
+                if (span.isEmpty() || "space".equals(state)) {
+                    return Option.none();
+                }
+                if (span.contentEquals("world")) {
+                    return Option.some("WORLD");
+                }
+                return Option.some(span.subSequence(0, 1) + ":" + span.length());
+            })
+            .add(Characters.SPACE, LexAction.SHIFT, "space")
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("space")
+            .add(Characters.SPACE, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(Characters.SPACE, LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .build(true));
+        List<String> tokenList = tokenizer.lex("hello  world").toList();
+        Assert.assertEquals(tokenList, List.of("h:5", "WORLD"));
+    }
+
+    @Test
+    public void equivalenceClasses() {
+        CompiledTable table = CompiledTable.compile(
+            new CharacterPredicate[][]{
+                {Characters.DIGIT, Characters.inclusive('a', 'f'), Characters.any()},
+                {Characters.of('x'), Characters.DIGIT},
+            },
+            new int[][]{
+                {
+                    LexTable.cell(LexAction.SHIFT, 0, 0),
+                    LexTable.cell(LexAction.SHIFT, 1, 0),
+                    LexTable.cell(LexAction.SKIP, 0, 0),
+                },
+                {LexTable.cell(LexAction.REDUCE, 0, 1), LexTable.cell(LexAction.SHIFT, 1, 1)},
+            },
+            false);
+
+        //digits, hex letters, x, everything else
+        Assert.assertEquals(table.classCount(), 4);
+        Assert.assertEquals(table.classOf('0'), table.classOf('9'));
+        Assert.assertEquals(table.classOf('a'), table.classOf('f'));
+        Assert.assertEquals(table.classOf('g'), table.classOf('\u4e2d'));
+        Assert.assertNotEquals(table.classOf('x'), table.classOf('g'));
+
+        Assert.assertEquals(table.transition(0, '7'), LexTable.cell(LexAction.SHIFT, 0, 0));
+        Assert.assertEquals(table.transition(0, 'c'), LexTable.cell(LexAction.SHIFT, 1, 0));
+        Assert.assertEquals(table.transition(0, 'x'), LexTable.cell(LexAction.SKIP, 0, 0));
+        Assert.assertEquals(table.transition(1, 'x'), LexTable.cell(LexAction.REDUCE, 0, 1));
+        Assert.assertEquals(table.transition(1, 'a'), LexTable.NONE);
+
+        LexTable generated = GeneratedTable.generate(table, 2);
+        Assert.assertNotSame(generated, table);
+        for (int state = 0; state < 2; state++) {
+            for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+                Assert.assertEquals(generated.transition(state, (char) ch), table.transition(state, (char) ch));
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void tooManyClasses() {
+        //each bit of the code point splits every class in two, for 2^17 classes
+        CharacterPredicate[][] predicates = new CharacterPredicate[1][17];
+        int[][] cells = new int[1][17];
+        for (int bit = 0; bit < 17; bit++) {
+            int mask = 1 << bit;
+            predicates[0][bit] = CodePointPredicate.of(cp -> (cp & mask) != 0);
+            cells[0][bit] = LexTable.cell(LexAction.SHIFT, 0, 0);
+        }
+        CompiledTable.compile(predicates, cells, true);
+    }
+
+    @Test
+    public void generatedLimits() {
+        //enough states for the dispatch to be split over three levels of methods
+        int stateCount = 300;
+        CharacterPredicate[][] predicates = new CharacterPredicate[stateCount][];
+        int[][] cells = new int[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            predicates[state] = new CharacterPredicate[]{Characters.of((char) ('a' + state % 26))};
+            cells[state] = new int[]{LexTable.cell(LexAction.SHIFT, (state + 1) % stateCount, 0)};
+        }
+        CompiledTable table = CompiledTable.compile(predicates, cells, false);
+        LexTable generated = GeneratedTable.generate(table, stateCount);
+        Assert.assertNotSame(generated, table);
+        for (int state = 0; state < stateCount; state++) {
+            for (char ch : "`abyz{".toCharArray()) {
+                Assert.assertEquals(generated.transition(state, ch), table.transition(state, ch));
+            }
+        }
+
+        //a state with too many ranges for one method, searched by a tree of them
+        CompiledTable split = CompiledTable.compile(
+            new CharacterPredicate[][]{{ch -> ch % 2 == 0 && ch < 4000}},
+            new int[][]{{LexTable.cell(LexAction.SHIFT_REDUCE, 0, 0)}},
+            false);
+        LexTable searched = GeneratedTable.generate(split, 1);
+        Assert.assertNotSame(searched, split);
+        for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+            Assert.assertEquals(searched.transition(0, ch), split.transition(0, ch));
+        }
+
+        //a state with too many ranges for the constant pool
+        CompiledTable striped = CompiledTable.compile(
+            new CharacterPredicate[][]{{ch -> ch % 2 == 0}},
+            new int[][]{{LexTable.cell(LexAction.SHIFT_REDUCE, 0, 0)}},
+            false);
+        Assert.assertSame(GeneratedTable.generate(striped, 1), striped);
+        LexStateMachine<String, String> machine = LexStateMachine
+            .builder("start")
+            .add(ch -> ch % 2 == 0, LexAction.SHIFT_REDUCE)
+            .add(Characters.any(), LexAction.SHIFT)
+            .mode(LexMode.GENERATED)
+            .build();
+        Assert.assertEquals(machine.mode(), LexMode.COMPILED);
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void mode(LexMode mode) {
+        Assert.assertEquals(grammar().mode(mode).build().mode(), mode);
+    }
+
+    @Test
+    public void lexParallel() {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .spanBuilder("start", (_, span, _) -> {
+                if (span.isEmpty()) {
+                    return Option.none();
+                }
+                long position = span.position();
+                return Option.some(span + "@" + span.start() + ":" + TokenSpan.line(position) + ":" + TokenSpan.column(position));
+            })
+            .add(Characters.of('"'), LexAction.SHIFT, "quote")
+            .add(Characters.SPACE, LexAction.SHIFT, "space")
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("quote")
+            .add(Characters.of('"'), LexAction.SHIFT_REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("space")
+            .add(Characters.SPACE, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(List.of(Characters.SPACE, Characters.of('"')), LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .resync(Characters.LF)
+            .build(true));
+
+        //quotes spanning lines make some of the parts start in the wrong state
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("line ").append(i).append(i % 7 == 0 ? " \"multi\r\nline\" " : " plain").append("\r\n");
+        }
+        List<String> expectedList = tokenizer.lex(new StringReader(text.toString())).toList();
+        for (int parallelism : new int[]{1, 2, 3, 8, 64, 1000}) {
+            Assert.assertEquals(tokenizer.lexParallel(text, parallelism), expectedList);
+        }
+        Assert.assertEquals(tokenizer.lex(text.toString()).toList(), expectedList);
+        Assert.assertEquals(tokenizer.lexParallel(text), expectedList);
+        Assert.assertEquals(tokenizer.lexParallel(""), List.of());
+    }
+
+    @Test
+    public void lexParallelInsideToken() {
+        //the initial state has no fallback, so a part starting inside a string fails on its punctuation
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.LOWER, LexAction.SHIFT, "word")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SKIP)
+            .add(Characters.of('"'), LexAction.SHIFT, "quote")
+            .begin("word")
+            .add(Characters.LOWER, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("quote")
+            .add(Characters.of('"'), LexAction.SHIFT_REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .resync(Characters.LF)
+            .build());
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("alpha \"one,\ntwo; three!\nfour\" beta\n");
+        }
+        List<String> expectedList = tokenizer.lex(text.toString()).toList();
+        for (int parallelism : new int[]{2, 3, 8, 64, 600}) {
+            Assert.assertEquals(tokenizer.lexParallel(text, parallelism), expectedList);
+        }
+
+        //an error that lexing in sequence reaches too is still thrown
+        text.append("gamma ;\n").append("delta\n".repeat(100));
+        Assert.assertThrows(LexException.class, () -> tokenizer.lex(text.toString()).toList());
+        Assert.assertThrows(LexException.class, () -> tokenizer.lexParallel(text, 8));
+    }
+
+    @DataProvider
+    public static Object[][] modeProvider() {
+        return Arrays.stream(LexMode.values()).map(mode -> new Object[]{mode}).toArray(Object[][]::new);
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void codePoints(LexMode mode) {
+        CharacterPredicate han = Characters.script(Character.UnicodeScript.HAN);
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.inclusive(0x1f600, 0x1f64f), LexAction.SHIFT_REDUCE)
+            .add(han, LexAction.SHIFT, "han")
+            .add(Characters.LOWER, LexAction.SHIFT, "word")
+            .add(ch -> Character.isSurrogate(ch), LexAction.SHIFT_REDUCE)
+            .add(Characters.any(), LexAction.SKIP)
+            .begin("han")
+            .add(han, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(Characters.LOWER, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .codePoints(true)
+            .mode(mode)
+            .build(true));
+
+        //emoji, CJK extension B, and lone surrogates matched by a character predicate
+        String text = "hi\ud83d\ude00\u4e2d\ud840\udc00 x\ud800y\udc00";
+        List<String> expectedList = List.of("hi", "\ud83d\ude00", "\u4e2d\ud840\udc00", "x", "\ud800", "y", "\udc00");
+        Assert.assertEquals(tokenizer.lex(text).toList(), expectedList);
+
+        List<String> tokenList = new ArrayList<>();
+        Iterator<String> it = tokenizer.lex(new StringReader(text + "\ud83d")).iterator();
+        while (it.hasNext()) {
+            tokenList.add(it.next());
+        }
+        Assert.assertEquals(tokenList.subList(0, expectedList.size()), expectedList);
+        Assert.assertEquals(tokenList.getLast(), "\ud83d");
+
+        //lone surrogates cannot be encoded
+        MemorySegment segment = MemorySegment.ofArray(text.substring(0, 9).getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(tokenizer.lex(segment).toList(), expectedList.subList(0, 4));
+    }
+
+    @Test
+    public void enumStates() {
+        LexStateMachine<LexState, String> machine = LexStateMachine
+            .builder(LexState.INTEGER)
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.SHIFT_REDUCE, LexState.IDENTIFIER)
+            .begin(LexState.IDENTIFIER)
+            .add(Characters.any(), LexAction.SHIFT_REDUCE, LexState.INTEGER)
+            .build(true);
+        Assert.assertEquals(machine.state(), LexState.INTEGER.ordinal());
+
+        List<String> tokenList = new ArrayList<>();
+        machine.process(tokenList::add, '1');
+        machine.process(tokenList::add, 'a');
+        Assert.assertEquals(machine.state(), LexState.IDENTIFIER.ordinal());
+        machine.process(tokenList::add, 'b');
+        Assert.assertEquals(machine.state(), LexState.INTEGER.ordinal());
+        Assert.assertEquals(tokenList, List.of("1a", "b"));
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void processRange(LexMode mode) {
+        LexStateMachine<LexState, String> machine = grammar().mode(mode).build(true);
+        String text = "  hello_world  12345\r\n\r\n\u00e9t\u00e9 \"quoted\"\r";
+        List<String> expectedList = new Tokenizer<>(machine).lex(text).toList();
+
+        //decline every token, so each call stops after the character that produced it
+        List<String> tokenList = new ArrayList<>();
+        LexStateMachine<LexState, String> paused = machine.duplicate();
+        char[] chars = text.toCharArray();
+        int pos = 0;
+        while (pos < chars.length) {
+            pos = paused.process(token -> !tokenList.add(token), chars, pos, chars.length);
+        }
+        paused.process(tokenList::add, chars, pos, pos);
+        paused.consume(tokenList::add);
+        Assert.assertEquals(tokenList, expectedList);
+
+        tokenList.clear();
+        LexStateMachine<LexState, String> split = machine.duplicate();
+        for (int i = 0; i < text.length(); i += 3) {
+            int end = Math.min(text.length(), i + 3);
+            Assert.assertEquals(split.process(tokenList::add, text, i, end), end);
+        }
+        split.consume(tokenList::add);
+        Assert.assertEquals(tokenList, expectedList);
+
+        //a buffer is copied from its position
+        tokenList.clear();
+        CharBuffer buffer = CharBuffer.wrap("--" + text).position(2);
+        LexStateMachine<LexState, String> wrapped = machine.duplicate();
+        Assert.assertEquals(wrapped.process(tokenList::add, buffer, 0, buffer.length()), text.length());
+        wrapped.consume(tokenList::add);
+        Assert.assertEquals(tokenList, expectedList);
+    }
+
+    @Test
+    public void processCharDeclined() {
+        LexStateMachine<LexState, String> machine = grammar().build(true);
+        List<String> tokenList = new ArrayList<>();
+        machine.process(tokenList::add, 'a');
+
+        //the space reduces the identifier, which is declined, so the space is finished by the next call
+        Assert.assertFalse(machine.process(token -> !tokenList.add(token), ' '));
+        Assert.assertFalse(machine.process(token -> !tokenList.add(token), '1'));
+        Assert.assertTrue(machine.process(tokenList::add, '2'));
+        machine.finish(tokenList::add);
+        Assert.assertEquals(tokenList, List.of("a", " ", "12"));
+    }
+
+    @Test
+    public void vectorScan() {
+        if (!VectorSupport.ENABLED) {
+            throw new SkipException("The Vector API is not available");
+        }
+
+        LexTable table = CompiledTable.compile(
+            new CharacterPredicate[][]{{Characters.DIGIT.or(Characters.LOWER), Characters.any()}},
+            new int[][]{{LexTable.cell(LexAction.SHIFT, 0, 0), LexTable.NONE}},
+            false);
+        char[] ranges = VectorSupport.ranges(table, new boolean[]{true})[0];
+        Assert.assertEquals(ranges, new char[]{'0', '9', 'a', 'z'});
+
+        Random random = new Random(42);
+        String alphabet = "0123456789abcdefghijklmnopqrstuvwxyz ABC/:{`\uffff";
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[random.nextInt(200)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            int from = chars.length == 0 ? 0 : random.nextInt(chars.length);
+            int expected = from;
+            while (expected < chars.length && table.transition(0, chars[expected]) != LexTable.NONE) {
+                expected++;
+            }
+            Assert.assertEquals(VectorScanner.scan(chars, from, chars.length, ranges, false), expected);
+        }
+
+        //surrogates stay in the ranges, and only end the run when lexing code points
+        LexTable any = CompiledTable.compile(
+            new CharacterPredicate[][]{{Characters.any()}},
+            new int[][]{{LexTable.cell(LexAction.SHIFT, 0, 0)}},
+            true);
+        char[] anyRanges = VectorSupport.ranges(any, new boolean[]{true})[0];
+        Assert.assertEquals(anyRanges, new char[]{0, '\r' - 1, '\r' + 1, Character.MAX_VALUE});
+        String units = "ab1 \ud83e\udd8a\r\uffff";
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[random.nextInt(200)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = units.charAt(random.nextInt(units.length()));
+            }
+            int from = chars.length == 0 ? 0 : random.nextInt(chars.length);
+            int end = from;
+            while (end < chars.length && chars[end] != '\r') {
+                end++;
+            }
+            int expected = from;
+            while (expected < end && !Character.isSurrogate(chars[expected])) {
+                expected++;
+            }
+            Assert.assertEquals(VectorScanner.scan(chars, from, chars.length, anyRanges, false), end);
+            Assert.assertEquals(VectorScanner.scan(chars, from, chars.length, anyRanges, true), expected);
+        }
+
+        //a state with too many ranges falls back to the scalar scan
+        LexTable sparse = CompiledTable.compile(
+            new CharacterPredicate[][]{{ch -> 'a' <= ch && ch <= 'l' && ch % 2 == 0, Characters.any()}},
+            new int[][]{{LexTable.cell(LexAction.SHIFT, 0, 0), LexTable.NONE}},
+            false);
+        Assert.assertNull(VectorSupport.ranges(sparse, new boolean[]{true})[0]);
+    }
+
     @Test(expectedExceptions = LexException.class)
     public void noInitialState() {
         LexStateMachine.builder("start").build();
@@ -197,4 +715,882 @@ public class TokenizerTest {
         machine.process(null, 'A');
         machine.process(_ -> true, 'b');
     }
+
+    @Test(dataProvider = "modeProvider")
+    public void deferChain(LexMode mode) {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start", (TokenFactory<String, String>) (state, text, _) -> {
+                if (text.isEmpty()) {
+                    return Option.none();
+                }
+                return Option.some(state + ":" + text);
+            })
+            .add(Characters.LOWER, LexAction.DEFER, "word")
+            .add(Characters.any(), LexAction.DEFER, "other")
+            .begin("word")
+            .add(Characters.LOWER, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("other")
+            .add(Characters.DIGIT, LexAction.DEFER, "digit")
+            .add(Characters.any(), LexAction.SHIFT_REDUCE, "start")
+            .begin("digit")
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .mode(mode)
+            .build(true));
+        List<String> tokenList = tokenizer.lex("ab12-c").toList();
+        Assert.assertEquals(tokenList, List.of("word:ab", "digit:12", "other:-", "word:c"));
+    }
+
+    @Test(dataProvider = "modeProvider", expectedExceptions = LexException.class)
+    public void deferCycle(LexMode mode) {
+        LexStateMachine
+            .builder("start")
+            .add(Characters.LOWER, LexAction.DEFER, "word")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("word")
+            .add(Characters.DIGIT, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.DEFER, "start")
+            .mode(mode)
+            .build();
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void deferNoCycle(LexMode mode) {
+        //the deferrals lead back to start, but never for the same character
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.LOWER, LexAction.DEFER, "word")
+            .add(Characters.any(), LexAction.SHIFT_REDUCE)
+            .begin("word")
+            .add(Characters.LOWER, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.DEFER, "start")
+            .mode(mode)
+            .build());
+        Assert.assertEquals(tokenizer.lex("ab+c").toList(), List.of("ab+", "c"));
+    }
+
+    @Test(expectedExceptions = LexException.class)
+    public void endlessReductions() {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.of('o'), LexAction.SHIFT, "o")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("o")
+            .add(Characters.of('o'), LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE)
+            .build());
+        tokenizer.lex("oops").toList();
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void keywords(LexMode mode) {
+        List<String> invoked = new ArrayList<>();
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start", (TokenFactory<String, String>) (state, text, _) -> {
+                if (text.isEmpty() || "start".equals(state)) {
+                    return Option.none();
+                }
+                invoked.add(text);
+                return Option.some("id:" + text);
+            })
+            .add(Characters.LOWER, LexAction.SHIFT, "word")
+            .add(Characters.any(), LexAction.SKIP)
+            .begin("word")
+            .add(Characters.LOWER, LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .keywords("word", Map.of("if", "IF", "else", "ELSE", "while", "WHILE"))
+            .mode(mode)
+            .build(true));
+        List<String> tokenList = tokenizer.lex("if x else whilst while").toList();
+        Assert.assertEquals(tokenList, List.of("IF", "id:x", "ELSE", "id:whilst", "WHILE"));
+        Assert.assertEquals(invoked, List.of("x", "whilst"));
+    }
+
+    @Test
+    public void keywordTable() {
+        Random random = new Random(42);
+        Map<String, Integer> keywords = new HashMap<>();
+        while (keywords.size() < 1000) {
+            StringBuilder word = new StringBuilder();
+            for (int i = random.nextInt(1, 12); i > 0; i--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            keywords.putIfAbsent(word.toString(), keywords.size());
+        }
+
+        KeywordTable<Integer> table = KeywordTable.build(keywords);
+        keywords.forEach((word, value) -> Assert.assertEquals(table.get(new StringBuilder(word)), value));
+        for (String word : keywords.keySet()) {
+            String other = word + "_";
+            Assert.assertNull(table.get(other));
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void positions(LexMode mode) throws IOException {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .spanBuilder("start", (state, span, _) -> {
+                if (span.isEmpty() || "space".equals(state)) {
+                    return Option.none();
+                }
+                long position = span.position();
+                return Option.some(span + "@" + TokenSpan.line(position) + ":" + TokenSpan.column(position));
+            })
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT, "space")
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("space")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .mode(mode)
+            .codePoints(true)
+            .build(true));
+
+        String text = "ab cd\r\n  ef\rg\n\n\ud834\udd1eh i";
+        List<String> expectedList = List.of("ab@1:1", "cd@1:4", "ef@2:3", "g@3:1", "\ud834\udd1eh@5:1", "i@5:4");
+        Assert.assertEquals(tokenizer.lex(text).toList(), expectedList);
+        try (Reader reader = new StringReader(text)) {
+            Assert.assertEquals(tokenizer.lex(reader).toList(), expectedList);
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void lexIncremental(LexMode mode) {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .builder("start")
+            .add(Characters.of('"'), LexAction.SHIFT, "quote")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT_REDUCE)
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("quote")
+            .add(Characters.of('"'), LexAction.SHIFT_REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("word")
+            .add(List.of(Characters.SPACE, Characters.LF, Characters.of('"')), LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .mode(mode)
+            .build(true));
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("word ").append(i).append(i % 100 == 0 ? " \"quoted\r\ntext\"" : "").append("\r\n");
+        }
+        IncrementalLexer<String, String> lexer = tokenizer.lexIncremental(text);
+        Assert.assertEquals(lexer.tokens(), tokenizer.lex(text.toString()).toList());
+
+        //an edit far from any quote only changes the tokens around it
+        int offset = text.indexOf("word 1050");
+        text.replace(offset, offset + 4, "w x");
+        IncrementalLexer.Change<String> change = lexer.edit(text, offset, 4, 3);
+        Assert.assertEquals(change.inserted(), List.of("w", " ", "x"));
+        Assert.assertEquals(change.removed(), 1);
+        Assert.assertEquals(lexer.tokens(), tokenizer.lex(text.toString()).toList());
+
+        Random random = new Random(7);
+        String alphabet = "ab \"\r\n";
+        for (int i = 0; i < 200; i++) {
+            int at = random.nextInt(text.length() + 1);
+            int removed = Math.min(random.nextInt(4), text.length() - at);
+            StringBuilder inserted = new StringBuilder();
+            for (int j = random.nextInt(4); j > 0; j--) {
+                inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            text.replace(at, at + removed, inserted.toString());
+            lexer.edit(text, at, removed, inserted.length());
+            Assert.assertEquals(lexer.tokens(), tokenizer.lex(text.toString()).toList());
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void lexIncrementalPositions(LexMode mode) {
+        Tokenizer<String, String> tokenizer = new Tokenizer<>(LexStateMachine
+            .spanBuilder("start", (_, span, _) -> {
+                if (span.isEmpty()) {
+                    return Option.<String>none();
+                }
+                long position = span.position();
+                return Option.some(
+                    span + "@" + span.start() + ":" + TokenSpan.line(position) + ":" + TokenSpan.column(position)
+                );
+            })
+            .add(Characters.of('"'), LexAction.SHIFT, "quote")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT_REDUCE)
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("quote")
+            .add(Characters.of('"'), LexAction.SHIFT_REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .begin("word")
+            .add(List.of(Characters.SPACE, Characters.LF, Characters.of('"')), LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .mode(mode)
+            .build(true));
+        Function<List<String>, List<String>> values = list -> list
+            .stream()
+            .map(token -> token.substring(0, token.lastIndexOf('@')))
+            .toList();
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("word ").append(i).append(i % 50 == 0 ? " \"quoted\r\ntext\"" : "").append("\r\n");
+        }
+        IncrementalLexer<String, String> lexer = tokenizer.lexIncremental(text);
+        Assert.assertEquals(lexer.tokens(), tokenizer.lex(text.toString()).toList());
+
+        //the tokens lexed again are up to date, the others only keep their values
+        Random random = new Random(11);
+        String alphabet = "ab \"\r\n";
+        for (int i = 0; i < 3000; i++) {
+            int at = random.nextInt(text.length() + 1);
+            int removed = Math.min(random.nextInt(4), text.length() - at);
+            StringBuilder inserted = new StringBuilder();
+            for (int j = random.nextInt(4); j > 0; j--) {
+                inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            text.replace(at, at + removed, inserted.toString());
+            IncrementalLexer.Change<String> change = lexer.edit(text, at, removed, inserted.length());
+
+            List<String> expected = tokenizer.lex(text.toString()).toList();
+            int end = change.from() + change.inserted().size();
+            Assert.assertEquals(change.inserted(), expected.subList(change.from(), end));
+            Assert.assertEquals(values.apply(lexer.tokens()), values.apply(expected));
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void snapshot(LexMode mode) {
+        LexStateMachine<String, String> machine = LexStateMachine
+            .spanBuilder("start", (state, span, _) -> {
+                if (span.isEmpty() || "space".equals(state)) {
+                    return Option.none();
+                }
+                return Option.some(span + "@" + span.start() + ":" + TokenSpan.line(span.position()));
+            })
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT, "space")
+            .add(Characters.any(), LexAction.SHIFT, "word")
+            .begin("space")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.SHIFT)
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word")
+            .add(Characters.SPACE.or(Characters.LF), LexAction.REDUCE, "start")
+            .add(Characters.any(), LexAction.SHIFT)
+            .mode(mode)
+            .codePoints(true)
+            .build(true);
+
+        String text = "alpha beta\r\ngamma \ud834\udd1edelta\repsilon";
+        List<String> expectedList = new Tokenizer<>(machine).lex(text).toList();
+        for (int split = 0; split <= text.length(); split++) {
+            List<String> tokenList = new ArrayList<>();
+            LexStateMachine<String, String> first = machine.duplicate();
+            first.process(tokenList::add, text, 0, split);
+            byte[] snapshot = first.snapshot();
+
+            LexStateMachine<String, String> second = machine.duplicate();
+            second.restore(snapshot);
+            second.process(tokenList::add, text, split, text.length());
+            Assert.assertTrue(second.finish(tokenList::add));
+            Assert.assertEquals(tokenList, expectedList, "split at " + split);
+        }
+    }
+
+    @Test(expectedExceptions = LexException.class)
+    public void snapshotMismatch() {
+        LexStateMachine<String, String> small = LexStateMachine
+            .builder("start")
+            .add(Characters.any(), LexAction.SHIFT_REDUCE)
+            .build();
+        LexStateMachine<String, String> large = LexStateMachine
+            .builder("start")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number")
+            .add(Characters.any(), LexAction.SHIFT_REDUCE)
+            .begin("number")
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .build();
+        large.restore(small.snapshot());
+    }
+
+    @Test
+    public void publisher() {
+        Tokenizer<LexState, String> tokenizer = new Tokenizer<>(grammar().build(true));
+        String text = "alpha 12 \u00e9t\u00e9 \ud834\udd1e 345\r\nomega" + " word 6789".repeat(2000);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+        List<String> tokenList = new ArrayList<>();
+        List<Flow.Subscription> subscriptions = new ArrayList<>();
+        AtomicBoolean complete = new AtomicBoolean();
+        AtomicBoolean ready = new AtomicBoolean();
+        TokenPublisher<LexState, String> publisher = tokenizer.publisher(StandardCharsets.UTF_8).onDemand(() -> ready.set(true));
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscriptions.add(subscription);
+            }
+
+            @Override
+            public void onNext(String item) {
+                tokenList.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Assert.fail("unexpected error", throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                complete.set(true);
+            }
+        });
+
+        //chunks of odd sizes split the multibyte characters, and the demand runs out along the way
+        Random random = new Random(5);
+        long requested = 0;
+        int pos = 0;
+        while (pos < bytes.length) {
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, pos, Math.min(random.nextInt(1, 64), bytes.length - pos));
+            while (!publisher.feed(chunk)) {
+                Assert.assertEquals(tokenList.size(), requested);
+                ready.set(false);
+                subscriptions.getFirst().request(7);
+                requested += 7;
+                Assert.assertTrue(ready.get() || tokenList.size() == requested);
+            }
+            pos = chunk.position();
+        }
+        publisher.close();
+        while (!complete.get()) {
+            subscriptions.getFirst().request(1);
+        }
+
+        Assert.assertEquals(tokenList, tokenizer.lex(text).toList());
+    }
+
+    /**
+     * Subscriber recording what it is signalled, and requesting a number of tokens when subscribed.
+     */
+    private static final class Recorder implements Flow.Subscriber<String> {
+        private final List<String> events = new ArrayList<>();
+        private final long initial;
+        private Flow.Subscription subscription;
+
+        private Recorder(long initial) {
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initial > 0) {
+                subscription.request(initial);
+            }
+        }
+
+        @Override
+        public void onNext(String item) {
+            events.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            events.add("error");
+        }
+
+        @Override
+        public void onComplete() {
+            events.add("complete");
+        }
+    }
+
+    @Test
+    public void publisherClosedFirst() {
+        //nothing to publish, so the completion needs no demand
+        TokenPublisher<LexState, String> empty = TOKENIZER.publisher(StandardCharsets.UTF_8);
+        empty.close();
+        Recorder first = new Recorder(0);
+        empty.subscribe(first);
+        Assert.assertEquals(first.events, List.of("complete"));
+
+        //the last token waits for the demand
+        TokenPublisher<LexState, String> publisher = TOKENIZER.publisher(StandardCharsets.UTF_8);
+        Assert.assertFalse(publisher.feed(ByteBuffer.wrap("ab 12".getBytes(StandardCharsets.UTF_8))));
+        publisher.close();
+        Recorder second = new Recorder(0);
+        publisher.subscribe(second);
+        Assert.assertEquals(second.events, List.of());
+        second.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(second.events, List.of("ab", " ", "12", "complete"));
+    }
+
+    @Test
+    public void publisherSubscriberFails() {
+        List<String> events = new ArrayList<>();
+        List<Flow.Subscription> subscriptions = new ArrayList<>();
+        TokenPublisher<LexState, String> publisher = TOKENIZER.publisher(StandardCharsets.UTF_8);
+        publisher.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscriptions.add(subscription);
+            }
+
+            @Override
+            public void onNext(String item) {
+                events.add(item);
+                throw new IllegalStateException(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                events.add("error");
+            }
+
+            @Override
+            public void onComplete() {
+                events.add("complete");
+            }
+        });
+        Assert.assertFalse(publisher.feed(ByteBuffer.wrap("ab 12".getBytes(StandardCharsets.UTF_8))));
+
+        //the exception reaches the caller, and the subscription is cancelled rather than told about it
+        IllegalStateException e = Assert.expectThrows(
+            IllegalStateException.class,
+            () -> subscriptions.getFirst().request(2)
+        );
+        Assert.assertEquals(e.getMessage(), "ab");
+        subscriptions.getFirst().request(2);
+        publisher.close();
+        Assert.assertEquals(events, List.of("ab"));
+    }
+
+    @Test
+    public void lexPipelined() {
+        String text = "alpha 12 beta 345\r\ngamma ".repeat(20000);
+        PipelineStats stats = new PipelineStats();
+        try (Stream<String> stream = TOKENIZER.lexPipelined(new StringReader(text), stats)) {
+            Assert.assertEquals(stream.toList(), TOKENIZER.lex(text).toList());
+        }
+        Assert.assertEquals(stats.capacity(), PipelinedSpliterator.BUFFERS);
+        Assert.assertTrue(stats.chunks() > text.length() / PipelinedSpliterator.BUFFER_SIZE);
+        Assert.assertEquals(stats.filled(), 0);
+
+        //closing early stops the reader
+        try (Stream<String> stream = TOKENIZER.lexPipelined(new StringReader(text))) {
+            Assert.assertEquals(stream.findFirst(), Optional.of("alpha"));
+        }
+    }
+
+    @Test(expectedExceptions = UncheckedIOException.class)
+    public void lexPipelinedError() {
+        Reader reader = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                throw new IOException("broken");
+            }
+
+            @Override
+            public void close() {
+                //empty
+            }
+        };
+        try (Stream<String> stream = TOKENIZER.lexPipelined(reader)) {
+            stream.toList();
+        }
+    }
+
+    @Test
+    public void lexPipelinedClose() throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicBoolean blocked = new AtomicBoolean();
+        Reader reader = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                if (started.compareAndSet(false, true)) {
+                    "alpha ".getChars(0, 6, buffer, offset);
+                    return 6;
+                }
+                //blocks like a socket, until closed
+                blocked.set(true);
+                try {
+                    closed.await();
+                    throw new IOException("closed");
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            @Override
+            public void close() {
+                closed.countDown();
+                if (!blocked.get()) {
+                    //the reader stopped before blocking, and any read it still makes returns at once
+                    finished.countDown();
+                }
+            }
+        };
+
+        //nothing is read until the stream runs
+        Stream<String> stream = TOKENIZER.lexPipelined(reader);
+        Thread.sleep(50);
+        Assert.assertFalse(started.get());
+
+        try (stream) {
+            Assert.assertEquals(stream.findFirst(), Optional.of("alpha"));
+        }
+        Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void lexPipelinedErrorFinishes() {
+        Reader reader = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                throw new IOException("broken");
+            }
+
+            @Override
+            public void close() {
+                //empty
+            }
+        };
+        try (Stream<String> stream = TOKENIZER.lexPipelined(reader)) {
+            Spliterator<String> spliterator = stream.spliterator();
+            Assert.assertThrows(UncheckedIOException.class, () -> spliterator.tryAdvance(_ -> {}));
+            Assert.assertFalse(spliterator.tryAdvance(_ -> {}));
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void minimize(LexMode mode) {
+        LexStateMachine.Builder<String, String> builder = LexStateMachine
+            .builder("start", (TokenFactory<String, String>) (state, text, _) -> {
+                if (text.isEmpty()) {
+                    return Option.none();
+                }
+                return Option.some(state.replace("2", "") + ":" + text);
+            })
+            .add(Characters.LOWER, LexAction.SHIFT, "word")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number")
+            .add(Characters.any(), LexAction.SKIP)
+            .begin("word")
+            .add(Characters.LOWER, LexAction.SHIFT, "word2")
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("word2")
+            .add(Characters.LOWER, LexAction.SHIFT, "word")
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("number")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number2")
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .begin("number2")
+            .add(Characters.DIGIT, LexAction.SHIFT, "number")
+            .add(Characters.any(), LexAction.REDUCE, "start")
+            .mode(mode);
+        String text = "abc 12 defg 3456 h 7";
+        List<String> expectedList = new Tokenizer<>(builder.build()).lex(text).toList();
+
+        LexStateMachine<String, String> machine = builder
+            .minimize((lhs, rhs) -> lhs.replace("2", "").equals(rhs.replace("2", "")))
+            .build();
+        Assert.assertEquals(machine.stateCount(), 3);
+        Assert.assertEquals(new Tokenizer<>(machine).lex(text).toList(), expectedList);
+
+        //states the factory tells apart are kept apart
+        Assert.assertEquals(builder.minimize(String::equals).build().stateCount(), 5);
+    }
+
+    @Test
+    public void saveLoad() throws IOException {
+        LexStateMachine<LexState, String> machine = grammar()
+            .mode(LexMode.COMPILED)
+            .codePoints(true)
+            .resync(Characters.LF)
+            .build(true);
+        Path path = Files.createTempFile("tchotchke", ".lex");
+        try {
+            machine.save(path);
+            LexStateMachine<LexState, String> loaded = LexStateMachine.load(path, LexState::valueOf, (_, span, end) -> {
+                if (end && span.isEmpty()) {
+                    return Option.none();
+                }
+                return Option.some(span.toString());
+            });
+
+            String text = "alpha 12 \ud834\udd1e beta\r\n345 gamma\n".repeat(100);
+            Tokenizer<LexState, String> tokenizer = new Tokenizer<>(loaded);
+            List<String> expectedList = new Tokenizer<>(machine).lex(text).toList();
+            Assert.assertEquals(tokenizer.lex(text).toList(), expectedList);
+            Assert.assertEquals(tokenizer.lexParallel(text, 4), expectedList);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void saveInterpreted() {
+        Path path = Path.of("unused");
+        Assert.assertThrows(LexException.class, () -> grammar().build().save(path));
+        //minimizing compiles the table, but the machine is still interpreted
+        LexStateMachine<LexState, String> minimized = grammar().minimize(Object::equals).build();
+        Assert.assertEquals(minimized.mode(), LexMode.INTERPRETED);
+        Assert.assertThrows(LexException.class, () -> minimized.save(path));
+    }
+
+    @Test
+    public void saveGenerated() throws IOException {
+        LexStateMachine<LexState, String> machine = grammar().mode(LexMode.GENERATED).build();
+        Assert.assertEquals(machine.mode(), LexMode.GENERATED);
+        Path path = Files.createTempFile("tchotchke", ".lex");
+        try {
+            machine.save(path);
+            LexStateMachine<LexState, String> loaded = LexStateMachine.load(
+                path,
+                LexState::valueOf,
+                (_, span, _) -> Option.some(span.toString())
+            );
+            Assert.assertEquals(loaded.mode(), LexMode.COMPILED);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expectedExceptions = LexException.class)
+    public void saveKeywords() throws IOException {
+        grammar()
+            .keywords(LexState.IDENTIFIER, Map.of("if", "IF"))
+            .mode(LexMode.COMPILED)
+            .build()
+            .save(Path.of("unused"));
+    }
+
+    @Test
+    public void loadCorrupt() throws IOException {
+        TokenSpanFactory<LexState, String> factory = (_, span, _) -> Option.some(span.toString());
+        Path path = Files.createTempFile("tchotchke", ".lex");
+        try {
+            grammar().mode(LexMode.COMPILED).build().save(path);
+            byte[] bytes = Files.readAllBytes(path);
+
+            //the number of states, the initial state and the last cell
+            Map<Integer, Integer> corruptions = Map.of(9, 0x7fffffff, 13, 5, bytes.length - 4, 0x7ffffff7);
+            for (Map.Entry<Integer, Integer> corruption : corruptions.entrySet()) {
+                byte[] corrupt = bytes.clone();
+                ByteBuffer.wrap(corrupt).putInt(corruption.getKey(), corruption.getValue());
+                Files.write(path, corrupt);
+                Assert.assertThrows(LexException.class, () -> LexStateMachine.load(path, LexState::valueOf, factory));
+            }
+
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+            Assert.assertThrows(LexException.class, () -> LexStateMachine.load(path, LexState::valueOf, factory));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void lexRules(LexMode mode) {
+        LexStateMachine<Integer, String> machine = LexRules
+            .builder("error")
+            .rule("if|else", "keyword")
+            .rule("[A-Za-z_]\\w*", "ident")
+            .rule("\\d+(\\.\\d+)?", "number")
+            .rule("\"([^\"\\\\]|\\\\.)*\"", "string")
+            .rule("==|=", "op")
+            .rule("-{2,3}", "dashes")
+            .rule("[ \\t\\n]+", "space")
+            .mode(mode)
+            .build((kind, span, _) -> Option.some(kind + ":" + span));
+        Tokenizer<Integer, String> tokenizer = new Tokenizer<>(machine);
+
+        Assert.assertEquals(
+            tokenizer.lex("if iffy == 3.25 else \"a\\\"b\" #=------- \"end").toList(),
+            List.of(
+                "keyword:if", "space: ", "ident:iffy", "space: ", "op:==", "space: ", "number:3.25", "space: ",
+                "keyword:else", "space: ", "string:\"a\\\"b\"", "space: ", "error:#", "op:=",
+                "dashes:---", "dashes:---", "error:-", "space: ", "error:\"end"
+            )
+        );
+
+        //no backtracking blowup, where java.util.regex takes exponential time
+        LexStateMachine<Integer, String> nested = LexRules
+            .builder("error")
+            .rule("(a|aa)*b", "ab")
+            .rule("a+", "a")
+            .mode(mode)
+            .build((kind, span, _) -> Option.some(kind + ":" + span.length()));
+        Assert.assertEquals(new Tokenizer<>(nested).lex("a".repeat(100_000) + "b").toList(), List.of("ab:100001"));
+        Assert.assertEquals(new Tokenizer<>(nested).lex("a".repeat(100_000)).toList(), List.of("a:100000"));
+
+        //a dot stops at line terminators, like java.util.regex does
+        LexStateMachine<Integer, String> line = LexRules
+            .builder("error")
+            .rule(".+", "line")
+            .rule("\\u00e9", "e")
+            .mode(mode)
+            .build((kind, span, _) -> Option.some(kind + ":" + span));
+        Assert.assertEquals(
+            new Tokenizer<>(line).lex("ab\ncd\u2028\u00e9").toList(),
+            List.of("line:ab", "error:\n", "line:cd", "error:\u2028", "line:\u00e9")
+        );
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void lexRulesLongestMatch(LexMode mode) throws IOException {
+        LexStateMachine<Integer, String> prefix = LexRules
+            .builder("error")
+            .rule("a|abc", "word")
+            .mode(mode)
+            .build((kind, span, _) -> Option.some(kind + ":" + span));
+        Tokenizer<Integer, String> prefixTokenizer = new Tokenizer<>(prefix);
+        Assert.assertEquals(prefixTokenizer.lex("abd").toList(), List.of("word:a", "error:b", "error:d"));
+        Assert.assertEquals(prefixTokenizer.lex("abcab").toList(), List.of("word:abc", "word:a", "error:b"));
+
+        LexStateMachine<Integer, String> machine = LexRules
+            .builder("error")
+            .rule("\\d+", "int")
+            .rule("\\d+\\.\\d+", "float")
+            .rule("[ \\n]+", "space")
+            .mode(mode)
+            .build((kind, span, _) -> Option.some(kind + ":" + span + "@" + span.start() + ":"
+                + TokenSpan.line(span.position()) + ":" + TokenSpan.column(span.position())));
+        Tokenizer<Integer, String> tokenizer = new Tokenizer<>(machine);
+        Assert.assertEquals(tokenizer.lex("1.").toList(), List.of("int:1@0:1:1", "error:.@1:1:2"));
+        Assert.assertEquals(
+            tokenizer.lex("12.x 3.5\r\n4.\r\n5").toList(),
+            List.of(
+                "int:12@0:1:1", "error:.@2:1:3", "error:x@3:1:4", "space: @4:1:5", "float:3.5@5:1:6",
+                "space:\n@8:1:9", "int:4@10:2:1", "error:.@11:2:2", "space:\n@12:2:3", "int:5@14:3:1"
+            )
+        );
+        try (Reader reader = new StringReader("12.x 3.5\r\n4.\r\n5")) {
+            Assert.assertEquals(tokenizer.lex(reader).toList(), tokenizer.lex("12.x 3.5\r\n4.\r\n5").toList());
+        }
+
+        //a snapshot taken past the longest match carries on the same way
+        LexStateMachine<Integer, String> first = machine.duplicate();
+        List<String> tokenList = new ArrayList<>();
+        first.process(tokenList::add, "7.", 0, 2);
+        LexStateMachine<Integer, String> second = machine.duplicate();
+        second.restore(first.snapshot());
+        second.process(tokenList::add, "y", 0, 1);
+        second.finish(tokenList::add);
+        Assert.assertEquals(tokenList, List.of("int:7@0:1:1", "error:.@1:1:2", "error:y@2:1:3"));
+
+        //the edits next to a number that went past its longest match lex it again
+        Random random = new Random(13);
+        StringBuilder text = new StringBuilder("1.2 3. 45.67\n".repeat(100));
+        IncrementalLexer<Integer, String> lexer = tokenizer.lexIncremental(text);
+        for (int i = 0; i < 500; i++) {
+            int at = random.nextInt(text.length() + 1);
+            int removed = Math.min(random.nextInt(3), text.length() - at);
+            String inserted = "1. ".substring(0, random.nextInt(4));
+            text.replace(at, at + removed, inserted);
+            lexer.edit(text, at, removed, inserted.length());
+            Assert.assertEquals(
+                lexer.tokens().stream().map(token -> token.substring(0, token.indexOf('@'))).toList(),
+                tokenizer.lex(text.toString()).map(token -> token.substring(0, token.indexOf('@'))).toList()
+            );
+        }
+
+        if (mode != LexMode.INTERPRETED) {
+            Path path = Files.createTempFile("tchotchke", ".lex");
+            try {
+                machine.save(path);
+                LexStateMachine<Integer, String> loaded = LexStateMachine.load(
+                    path,
+                    Integer::valueOf,
+                    (_, span, _) -> span.isEmpty() ? Option.none() : Option.some(span.toString())
+                );
+                Assert.assertEquals(new Tokenizer<>(loaded).lex("1.").toList(), List.of("1", "."));
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void lexRulesInvalid() {
+        for (String regex : List.of("a*", "(a", "[a-", "a{3,2}", "*", "\\q", "x|", "\\u+123", "\\u12g4", "\\u12", "a{\u0663}")) {
+            Assert.assertThrows(LexException.class, () -> LexRules.builder("error").rule(regex, "kind").build(
+                (kind, span, _) -> Option.some(kind + ":" + span)
+            ));
+        }
+    }
+
+    @Test(dataProvider = "modeProvider")
+    public void profile(LexMode mode) {
+        LexStateMachine<LexState, String> machine = grammar().mode(mode).profile(true).build();
+        Tokenizer<LexState, String> tokenizer = new Tokenizer<>(machine);
+        String text = "alpha 12 beta_long 345\n".repeat(50);
+        int tokens = tokenizer.lex(text).toList().size() + tokenizer.lex(text).toList().size();
+        Assert.assertEquals(tokenizer.lex("").toList(), List.of());
+
+        LexProfile<LexState> profile = machine.profile();
+        Assert.assertEquals(profile.tokens(), tokens);
+        Assert.assertEquals(profile.dropped(), 1);
+        Assert.assertEquals(profile.maxTokenLength(), "beta_long".length());
+        Assert.assertEquals(profile.count(LexState.START, LexAction.SHIFT), tokens);
+        Assert.assertEquals(profile.count(LexAction.REDUCE), tokens - 2);
+        Assert.assertEquals(profile.count(LexAction.SHIFT) + profile.count(LexAction.SHIFT_REDUCE), 2L * text.length());
+        Assert.assertEquals(profile.merge(profile).tokens(), 2L * tokens);
+
+        System.gc();
+        Assert.assertEquals(machine.profile().tokens(), tokens);
+        Assert.assertEquals(machine.profile().count(LexAction.REDUCE), tokens - 2);
+    }
+
+    @Test(expectedExceptions = LexException.class)
+    public void profileDisabled() {
+        grammar().build().profile();
+    }
+
+    @Test
+    public void flightRecorder() throws IOException {
+        String text = "alpha 12\n".repeat(70_000);
+        long tokens;
+        Path path = Files.createTempFile("tchotchke", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("com.github.ncoe.tchotchke.Lex").withThreshold(Duration.ZERO);
+                recording.enable("com.github.ncoe.tchotchke.LexProgress");
+                recording.enable("com.github.ncoe.tchotchke.LexError");
+                recording.start();
+                tokens = TOKENIZER.lex(text).count();
+                try (var stream = TOKENIZER.lex("beta 34 gamma 56")) {
+                    Assert.assertTrue(stream.findFirst().isPresent());
+                }
+                Assert.assertNotNull(new LexException("Never thrown"));
+                Assert.assertThrows(LexException.class, () -> grammar().build().save(path));
+                recording.stop();
+                recording.dump(path);
+            }
+
+            Map<String, List<RecordedEvent>> events = new HashMap<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(path)) {
+                events.computeIfAbsent(event.getEventType().getName(), _ -> new ArrayList<>()).add(event);
+            }
+            List<RecordedEvent> lexes = events.get("com.github.ncoe.tchotchke.Lex");
+            Assert.assertEquals(lexes.size(), 2);
+            RecordedEvent lex = lexes.stream().filter(e -> e.getLong("tokens") > 1).findFirst().orElseThrow();
+            Assert.assertEquals(lex.getString("grammar"), LexState.class.getName());
+            Assert.assertEquals(lex.getLong("chars"), text.length());
+            Assert.assertEquals(lex.getLong("tokens"), tokens);
+
+            List<RecordedEvent> progress = events.get("com.github.ncoe.tchotchke.LexProgress");
+            Assert.assertEquals(progress.size(), tokens / LexProgressEvent.SAMPLE);
+            Assert.assertEquals(progress.getFirst().getLong("tokens"), LexProgressEvent.SAMPLE);
+
+            RecordedEvent closed = lexes.stream().filter(e -> e != lex).findFirst().orElseThrow();
+            Assert.assertEquals(closed.getLong("tokens"), 1);
+
+            List<RecordedEvent> errors = events.get("com.github.ncoe.tchotchke.LexError");
+            Assert.assertEquals(errors.size(), 1);
+            Assert.assertTrue(errors.getFirst().getString("message").startsWith("Only a compiled state machine"));
+        } finally {
+            Files.delete(path);
+        }
+    }
 }